@@ -0,0 +1,127 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fans out <code>concurrency</code> callback based requests against a slow loopback endpoint, once using the default async mode
+ * (non-blocking client and callbacks on the cached thread pool) and once on virtual threads (Java 21+). The resident set size and
+ * the live thread count are printed after every iteration.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar AsyncModeBenchmark
+ * </pre>
+ *
+ * @author thoeger
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgs = "-Xmx1g")
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class AsyncModeBenchmark {
+
+    @Param({"false", "true"})
+    public boolean virtualThreads;
+
+    @Param({"100", "1000"})
+    public int concurrency;
+
+    @Param({"20"})
+    public int delay;
+
+    private LoopbackServer server;
+
+    private String url;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.server = new LoopbackServer();
+        this.url = this.server.url("/delay/" + this.delay);
+        WS.configure(new HTTPClientConfig().maxTotal(this.concurrency).maxPerRoute(this.concurrency).virtualThreads(this.virtualThreads));
+    }
+
+    @TearDown(Level.Iteration)
+    public void footprint() throws IOException {
+        System.out.printf("%n  threads: %d, %s%n", ManagementFactory.getThreadMXBean().getThreadCount(), AsyncModeBenchmark.residentSetSize());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        WS.configure(new HTTPClientConfig());
+        this.server.close();
+    }
+
+    /**
+     * Reports batches per second; multiply by <code>concurrency</code> for requests per second.
+     */
+    @Benchmark
+    public void fanOut() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(this.concurrency);
+        final HTTPResponseCallback callback = new HTTPResponseCallback() {
+
+            @Override
+            public void response(final HTTPResponse response) {
+                latch.countDown();
+            }
+
+            @Override
+            public void fail(final Exception e) {
+                latch.countDown();
+            }
+        };
+        for(int i = 0; i < this.concurrency; i++) {
+            WS.url(this.url).getAsync(callback);
+        }
+        latch.await();
+    }
+
+    private static String residentSetSize() throws IOException {
+        final Path status = Paths.get("/proc/self/status");
+        if(!Files.exists(status)) {
+            return "VmRSS: n/a";
+        }
+        return Files.readAllLines(status).stream().filter(line -> line.startsWith("VmRSS")).findFirst().orElse("VmRSS: n/a");
+    }
+
+}
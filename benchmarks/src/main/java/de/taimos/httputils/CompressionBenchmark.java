@@ -0,0 +1,141 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads JSON documents of several sizes uncompressed, gzip and deflate encoded to a loopback server. <code>encode</code> isolates
+ * the CPU spent compressing, <code>upload</code> measures the full round trip. The average number of request body bytes on the
+ * wire per upload is printed after each trial.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar CompressionBenchmark
+ * </pre>
+ *
+ * @author thoeger
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CompressionBenchmark {
+
+    private static final OutputStream DISCARD = new OutputStream() {
+
+        @Override
+        public void write(final int b) {
+            //
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            //
+        }
+    };
+
+    @Param({"identity", "gzip", "deflate"})
+    public String encoding;
+
+    @Param({"512", "8192", "262144"})
+    public int size;
+
+    private String json;
+
+    private LoopbackServer server;
+
+    private String url;
+
+    private long uploads;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.json = CompressionBenchmark.json(this.size);
+        this.server = new LoopbackServer();
+        this.url = this.server.url("/discard");
+        this.uploads = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if(this.uploads > 0) {
+            System.out.printf("%n%s, %d bytes: %d bytes on the wire per upload%n", this.encoding, this.json.length(), this.server.received() / this.uploads);
+        }
+        this.server.close();
+    }
+
+    @Benchmark
+    public void encode() throws IOException {
+        ((HttpEntityEnclosingRequest) this.request().prepare().createRequest(HTTPRequest.Method.POST)).getEntity().writeTo(CompressionBenchmark.DISCARD);
+    }
+
+    @Benchmark
+    public int upload() {
+        this.uploads++;
+        try (final HTTPResponse response = this.request().post()) {
+            return response.getStatus();
+        }
+    }
+
+    private HTTPRequest request() {
+        final HTTPRequest request = WS.url(this.url).contentType("application/json").body(this.json);
+        if("gzip".equals(this.encoding)) {
+            request.compress(HTTPRequest.Encoding.GZIP, 0);
+        } else if("deflate".equals(this.encoding)) {
+            request.compress(HTTPRequest.Encoding.DEFLATE, 0);
+        }
+        return request;
+    }
+
+    private static String json(final int size) {
+        final StringBuilder sb = new StringBuilder(size + 128).append('[');
+        for(int i = 0; sb.length() < size; i++) {
+            if(i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"id\":").append(i)
+                    .append(",\"name\":\"customer-").append(i)
+                    .append("\",\"active\":").append((i % 3) != 0)
+                    .append(",\"tags\":[\"retail\",\"eu\"],\"balance\":").append((i * 37) % 10000).append(".25}");
+        }
+        return sb.append(']').toString();
+    }
+
+}
@@ -0,0 +1,107 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
+import org.apache.hc.core5.http.nio.AsyncRequestConsumer;
+import org.apache.hc.core5.http.nio.AsyncServerRequestHandler;
+import org.apache.hc.core5.http.nio.entity.StringAsyncEntityConsumer;
+import org.apache.hc.core5.http.nio.support.BasicRequestConsumer;
+import org.apache.hc.core5.http.nio.support.BasicResponseProducer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2ServerBootstrap;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.ListenerEndpoint;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal in-process server on the loopback interface speaking both HTTP/1.1 and h2c with prior knowledge.
+ * <ul>
+ * <li><code>/delay/{ms}</code> answers after waiting ms milliseconds without blocking a thread</li>
+ * </ul>
+ *
+ * @author thoeger
+ */
+final class H2LoopbackServer implements AutoCloseable {
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+    private final HttpAsyncServer server;
+
+    private final int port;
+
+    H2LoopbackServer() throws IOException {
+        this.server = H2ServerBootstrap.bootstrap()
+                .setVersionPolicy(HttpVersionPolicy.NEGOTIATE)
+                .register("/delay/*", new AsyncServerRequestHandler<Message<HttpRequest, String>>() {
+
+                    @Override
+                    public AsyncRequestConsumer<Message<HttpRequest, String>> prepare(final HttpRequest request, final EntityDetails entityDetails, final HttpContext context) {
+                        return new BasicRequestConsumer<>(new StringAsyncEntityConsumer());
+                    }
+
+                    @Override
+                    public void handle(final Message<HttpRequest, String> message, final ResponseTrigger responseTrigger, final HttpContext context) {
+                        final String path = message.getHead().getPath();
+                        final long delay = Long.parseLong(path.substring(path.lastIndexOf('/') + 1));
+                        H2LoopbackServer.this.timer.schedule(() -> {
+                            try {
+                                responseTrigger.submitResponse(new BasicResponseProducer(HttpStatus.SC_OK, "ok"), context);
+                            } catch(final HttpException | IOException e) {
+                                // the client went away
+                            }
+                        }, delay, TimeUnit.MILLISECONDS);
+                    }
+                })
+                .create();
+        this.server.start();
+        try {
+            final ListenerEndpoint endpoint = this.server.listen(new InetSocketAddress("localhost", 0)).get();
+            this.port = ((InetSocketAddress) endpoint.getAddress()).getPort();
+        } catch(final InterruptedException | ExecutionException e) {
+            this.close();
+            throw new IOException("Failed to start server", e);
+        }
+    }
+
+    String url(final String path) {
+        return "http://localhost:" + this.port + path;
+    }
+
+    @Override
+    public void close() {
+        this.server.close(CloseMode.IMMEDIATE);
+        this.timer.shutdownNow();
+    }
+
+}
@@ -0,0 +1,104 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Minimal in-process HTTP server on the loopback interface.
+ * <ul>
+ * <li><code>/bytes/{n}</code> returns a body of n bytes</li>
+ * <li><code>/delay/{ms}</code> answers after sleeping ms milliseconds</li>
+ * <li><code>/discard</code> reads and drops the request body, counting the bytes received on the wire</li>
+ * </ul>
+ *
+ * @author thoeger
+ */
+final class LoopbackServer implements AutoCloseable {
+
+    private final HttpServer server;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final LongAdder received = new LongAdder();
+
+    LoopbackServer() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 1024);
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/bytes/", exchange -> {
+            final byte[] body = new byte[Integer.parseInt(LoopbackServer.lastSegment(exchange.getRequestURI().getPath()))];
+            Arrays.fill(body, (byte) 'x');
+            exchange.sendResponseHeaders(200, body.length);
+            try (final OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        this.server.createContext("/delay/", exchange -> {
+            try {
+                Thread.sleep(Long.parseLong(LoopbackServer.lastSegment(exchange.getRequestURI().getPath())));
+            } catch(final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        this.server.createContext("/discard", exchange -> {
+            final byte[] buffer = new byte[8192];
+            try (final InputStream in = exchange.getRequestBody()) {
+                int read;
+                while((read = in.read(buffer)) >= 0) {
+                    this.received.add(read);
+                }
+            }
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        this.server.start();
+    }
+
+    long received() {
+        return this.received.sum();
+    }
+
+    String url(final String path) {
+        return "http://localhost:" + this.server.getAddress().getPort() + path;
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    private static String lastSegment(final String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+}
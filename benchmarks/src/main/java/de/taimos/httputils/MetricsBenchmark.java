@@ -0,0 +1,66 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost the {@link MetricsRecorder} adds to every attempt, contended by four threads. Run with <code>-prof gc</code> to
+ * check that recording does not allocate.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar MetricsBenchmark -prof gc
+ * </pre>
+ *
+ * @author thoeger
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Threads(4)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MetricsBenchmark {
+
+    private final MetricsRecorder recorder = new MetricsRecorder();
+
+    @Benchmark
+    public void recordAttempt() {
+        this.recorder.started("api.example.com", "/users/{id}");
+        this.recorder.sent("api.example.com", "/users/{id}", 512);
+        this.recorder.completed("api.example.com", "/users/{id}", 200, ThreadLocalRandom.current().nextLong(50000000));
+        this.recorder.received("api.example.com", "/users/{id}", 2048);
+    }
+
+}
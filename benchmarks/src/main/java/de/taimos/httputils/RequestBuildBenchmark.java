@@ -0,0 +1,124 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.apache.http.client.methods.HttpRequestBase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the CPU bound stages of a request separately: building the {@link HTTPRequest}, expanding the URI, preparing the
+ * configuration, headers and body and creating the Apache request from a {@link PreparedRequest}. Run with <code>-prof gc</code> to see allocation rates.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar RequestBuildBenchmark -prof gc
+ * </pre>
+ *
+ * @author thoeger
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RequestBuildBenchmark {
+
+    private static final String URL = "http://localhost:8080/users/{user}/items/{item}";
+
+    private static final URLTemplate TEMPLATE = WS.template(RequestBuildBenchmark.URL);
+
+    private static final URLTemplate CACHED_TEMPLATE = WS.template(RequestBuildBenchmark.URL).cached(100);
+
+    private HTTPRequest request;
+
+    private HTTPRequest templateRequest;
+
+    private HTTPRequest cachedTemplateRequest;
+
+    private PreparedRequest prepared;
+
+    @Setup
+    public void setup() {
+        this.request = RequestBuildBenchmark.build(WS.url(RequestBuildBenchmark.URL));
+        this.templateRequest = RequestBuildBenchmark.build(WS.url(RequestBuildBenchmark.TEMPLATE));
+        this.cachedTemplateRequest = WS.url(RequestBuildBenchmark.CACHED_TEMPLATE).pathParam("user", "4711").pathParam("item", "0815");
+        this.prepared = this.request.prepare();
+    }
+
+    @Benchmark
+    public HTTPRequest construct() {
+        return RequestBuildBenchmark.build(WS.url(RequestBuildBenchmark.URL));
+    }
+
+    @Benchmark
+    public URI buildURI() {
+        return this.request.buildURI();
+    }
+
+    @Benchmark
+    public URI buildTemplateURI() {
+        return this.templateRequest.buildURI();
+    }
+
+    @Benchmark
+    public URI buildCachedTemplateURI() {
+        return this.cachedTemplateRequest.buildURI();
+    }
+
+    @Benchmark
+    public PreparedRequest prepare() {
+        return this.request.prepare();
+    }
+
+    @Benchmark
+    public HttpRequestBase createPreparedRequest() {
+        return this.prepared.createRequest(HTTPRequest.Method.POST);
+    }
+
+    private static HTTPRequest build(final HTTPRequest request) {
+        return request
+                .pathParam("user", "4711")
+                .pathParam("item", "0815")
+                .queryParam("page", "2")
+                .queryParam("size", "50")
+                .queryParam("sort", "name")
+                .accept("application/json")
+                .contentType("application/json")
+                .authBearer("eyJhbGciOiJIUzI1NiJ9.e30.ZRrHA1JJJW8opsbCGfG_HACGpVUMN_a9IV7pAx_Zmeo")
+                .header("X-Request-Id", "5f1b1d5e-6f0a-4c7e-9d2e-2b7c3f1a9e10")
+                .userAgent("httputils-benchmark")
+                .timeout(5000)
+                .body("{\"name\":\"benchmark\"}");
+    }
+
+}
@@ -0,0 +1,143 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading response bodies of several sizes, once from memory to isolate the decoding and once as a full round trip
+ * through the pooled client against a loopback server, buffered and streamed. Run with <code>-prof gc</code> to see allocation rates.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar ResponseBenchmark -prof gc
+ * </pre>
+ *
+ * @author thoeger
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ResponseBenchmark {
+
+    private static final WritableByteChannel DISCARD = new WritableByteChannel() {
+
+        @Override
+        public int write(final ByteBuffer src) {
+            final int remaining = src.remaining();
+            src.position(src.limit());
+            return remaining;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            //
+        }
+    };
+
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    private byte[] body;
+
+    private LoopbackServer server;
+
+    private String url;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.body = new byte[this.size];
+        Arrays.fill(this.body, (byte) 'x');
+        this.server = new LoopbackServer();
+        this.url = this.server.url("/bytes/" + this.size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.server.close();
+    }
+
+    @Benchmark
+    public String decodeString() {
+        return this.inMemory().getResponseAsString();
+    }
+
+    @Benchmark
+    public byte[] decodeBytes() {
+        return this.inMemory().getResponseAsBytes();
+    }
+
+    @Benchmark
+    public String executeString() {
+        try (final HTTPResponse response = WS.url(this.url).get()) {
+            return response.getResponseAsString();
+        }
+    }
+
+    @Benchmark
+    public byte[] executeBytes() {
+        try (final HTTPResponse response = WS.url(this.url).get()) {
+            return response.getResponseAsBytes();
+        }
+    }
+
+    @Benchmark
+    public long executeTransfer() {
+        try (final HTTPResponse response = WS.url(this.url).get()) {
+            return response.transferTo(ResponseBenchmark.DISCARD);
+        }
+    }
+
+    private HTTPResponse inMemory() {
+        final BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new ByteArrayEntity(this.body));
+        return new HTTPResponse(response);
+    }
+
+}
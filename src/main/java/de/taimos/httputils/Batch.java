@@ -0,0 +1,314 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.BufferedHttpEntity;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Runs many requests with a bounded number in flight. Created by {@link WS#batch(Collection)}. Requests run on the non-blocking
+ * client, so the concurrency limit and not the number of requests determines the resources used.
+ *
+ * <pre>
+ * List&lt;Batch.Result&gt; results = WS.batch(requests).concurrency(32).onComplete(r -&gt; log(r)).execute();
+ * </pre>
+ *
+ * Response bodies are read into memory as they arrive, so every connection goes back to the pool right away and batches can be
+ * larger than the pool.
+ *
+ * @author thoeger
+ */
+public final class Batch {
+
+    private final List<HTTPRequest> requests;
+
+    private HTTPRequest.Method method = HTTPRequest.Method.GET;
+
+    private int concurrency = 16;
+
+    private boolean failFast = false;
+
+    private Consumer<Result> listener = result -> {
+        //
+    };
+
+    Batch(final Collection<HTTPRequest> requests) {
+        this.requests = new ArrayList<>(requests);
+    }
+
+    /**
+     * @param method the method to execute every request with (default: GET)
+     * @return this
+     */
+    public Batch method(final HTTPRequest.Method method) {
+        if(method == null) {
+            throw new IllegalArgumentException("method must not be null");
+        }
+        this.method = method;
+        return this;
+    }
+
+    /**
+     * @param limit maximum number of requests in flight at the same time (default: 16)
+     * @return this
+     */
+    public Batch concurrency(final int limit) {
+        if(limit <= 0) {
+            throw new IllegalArgumentException("concurrency must be > 0");
+        }
+        this.concurrency = limit;
+        return this;
+    }
+
+    /**
+     * @param enabled <code>true</code> to stop on the first failure and cancel the requests in flight; <code>false</code> to run all
+     *                requests and collect failures in the results (default: false)
+     * @return this
+     */
+    public Batch failFast(final boolean enabled) {
+        this.failFast = enabled;
+        return this;
+    }
+
+    /**
+     * @param listener called with every result as soon as it arrives, in completion order; it must not block. If it throws, the
+     *                 remaining requests still run and the batch fails with the first exception thrown once it is done
+     * @return this
+     */
+    public Batch onComplete(final Consumer<Result> listener) {
+        if(listener == null) {
+            throw new IllegalArgumentException("listener must not be null");
+        }
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * @return the results in the order of the requests
+     */
+    public List<Result> execute() {
+        return PreparedRequest.await(this.executeAsync());
+    }
+
+    /**
+     * @return the future results in the order of the requests; it fails with the first failure if the batch fails fast or with the
+     *         first exception thrown by the listener
+     */
+    public CompletableFuture<List<Result>> executeAsync() {
+        final Run run = new Run();
+        run.pump();
+        return run.future;
+    }
+
+    private static void buffer(final HTTPResponse response) throws IOException {
+        final HttpResponse raw = response.getResponse();
+        if(raw.getEntity() != null) {
+            // reading the body to the end releases the connection
+            raw.setEntity(new BufferedHttpEntity(raw.getEntity()));
+        }
+    }
+
+    /**
+     * The outcome of one request of a batch.
+     */
+    public static final class Result {
+
+        private final int index;
+
+        private final HTTPResponse response;
+
+        private final Throwable exception;
+
+        private Result(final int index, final HTTPResponse response, final Throwable exception) {
+            this.index = index;
+            this.response = response;
+            this.exception = exception;
+        }
+
+        /**
+         * @return the position of the request in the batch
+         */
+        public int getIndex() {
+            return this.index;
+        }
+
+        /**
+         * @return true if a response was received
+         */
+        public boolean isSuccess() {
+            return this.exception == null;
+        }
+
+        /**
+         * @return the response or null if the request failed
+         */
+        public HTTPResponse getResponse() {
+            return this.response;
+        }
+
+        /**
+         * @return the failure or null if a response was received
+         */
+        public Throwable getException() {
+            return this.exception;
+        }
+    }
+
+    /**
+     * State of one execution. Requests are started by a single pumping thread at a time so synchronous completions do not recurse.
+     */
+    private final class Run {
+
+        private final CompletableFuture<List<Result>> future = new CompletableFuture<>();
+
+        private final int size = Batch.this.requests.size();
+
+        private final Result[] results = new Result[this.size];
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private final CompletableFuture<HTTPResponse>[] inFlight = new CompletableFuture[this.size];
+
+        private int next;
+
+        private int running;
+
+        private int done;
+
+        private boolean pumping;
+
+        private boolean failed;
+
+        private RuntimeException listenerFailure;
+
+        private void pump() {
+            synchronized(this) {
+                if(this.pumping) {
+                    return;
+                }
+                this.pumping = true;
+            }
+            while(true) {
+                final int index;
+                synchronized(this) {
+                    if(this.failed || (this.next >= this.size) || (this.running >= Batch.this.concurrency)) {
+                        this.pumping = false;
+                        if(!this.failed && (this.done == this.size)) {
+                            break;
+                        }
+                        return;
+                    }
+                    index = this.next++;
+                    this.running++;
+                }
+                this.launch(index);
+            }
+            final RuntimeException failure;
+            synchronized(this) {
+                failure = this.listenerFailure;
+            }
+            if(failure != null) {
+                this.future.completeExceptionally(failure);
+            } else {
+                this.future.complete(Collections.unmodifiableList(Arrays.asList(this.results)));
+            }
+        }
+
+        private void launch(final int index) {
+            CompletableFuture<HTTPResponse> response;
+            try {
+                response = Batch.this.requests.get(index).executeAsync(Batch.this.method);
+            } catch(final RuntimeException e) {
+                response = new CompletableFuture<>();
+                response.completeExceptionally(e);
+            }
+            synchronized(this) {
+                this.inFlight[index] = response;
+            }
+            response.whenComplete((r, e) -> this.completed(index, r, e));
+        }
+
+        private void completed(final int index, final HTTPResponse response, final Throwable error) {
+            Throwable e = error;
+            if(response != null) {
+                try {
+                    Batch.buffer(response);
+                } catch(final IOException ex) {
+                    response.close();
+                    e = new RuntimeException(ex);
+                }
+            }
+            final Result result = new Result(index, e == null ? response : null, e);
+            final boolean fail;
+            synchronized(this) {
+                if(this.failed) {
+                    return;
+                }
+                this.results[index] = result;
+                this.inFlight[index] = null;
+                this.running--;
+                fail = (e != null) && Batch.this.failFast;
+                this.failed = fail;
+            }
+            try {
+                Batch.this.listener.accept(result);
+            } catch(final RuntimeException ex) {
+                synchronized(this) {
+                    if(this.listenerFailure == null) {
+                        this.listenerFailure = ex;
+                    }
+                }
+            } finally {
+                // counted after the listener so the batch is not done before every listener returned
+                synchronized(this) {
+                    this.done++;
+                }
+                if(fail) {
+                    this.abort(e);
+                } else {
+                    this.pump();
+                }
+            }
+        }
+
+        private void abort(final Throwable cause) {
+            final List<CompletableFuture<HTTPResponse>> cancel = new ArrayList<>();
+            synchronized(this) {
+                for(final CompletableFuture<HTTPResponse> response : this.inFlight) {
+                    if(response != null) {
+                        cancel.add(response);
+                    }
+                }
+            }
+            cancel.forEach(f -> f.cancel(false));
+            this.future.completeExceptionally(cause);
+        }
+    }
+
+}
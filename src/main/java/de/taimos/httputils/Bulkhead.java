@@ -0,0 +1,209 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Isolates dependencies from each other by limiting the number of concurrent attempts per partition. A partition is the target host,
+ * or an explicit tag set using {@link HTTPRequest#bulkhead(Bulkhead, String)}. A slot is held until
+ * the attempt fails, or until the response body is read to the end or the response is closed. Every attempt holding a slot holds at
+ * most one pooled connection, so the limit is also the connection quota of the partition and a dependency with slow headers or bodies
+ * can not take the whole pool.
+ * <p>
+ * If all slots are taken an attempt waits in a bounded queue. Blocking requests wait on their thread; asynchronous requests are
+ * resumed when a slot frees up without holding a thread. If the queue is full or the wait times out the request fails fast with a
+ * {@link BulkheadFullException}. One instance can be used by any number of requests; use {@link WS#bulkhead(String)} to share it by
+ * name.
+ *
+ * @author thoeger
+ */
+public final class Bulkhead {
+
+    private static final ConcurrentMap<String, Bulkhead> REGISTRY = new ConcurrentHashMap<>();
+
+    private static final CompletableFuture<Void> GRANTED = CompletableFuture.completedFuture(null);
+
+    private final ConcurrentMap<String, Partition> partitions = new ConcurrentHashMap<>();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private volatile int maxConcurrent = 20;
+
+    private volatile int maxQueued = 0;
+
+    private volatile long maxWait = 0;
+
+    /**
+     * @param max maximum number of attempts in flight per partition (default: 20)
+     * @return this
+     */
+    public Bulkhead maxConcurrent(final int max) {
+        if(max <= 0) {
+            throw new IllegalArgumentException("maxConcurrent must be > 0");
+        }
+        this.maxConcurrent = max;
+        return this;
+    }
+
+    /**
+     * @param size    maximum number of attempts waiting for a slot per partition (default: 0, fail at once)
+     * @param maxWait maximum time in ms to wait for a slot
+     * @return this
+     */
+    public Bulkhead queue(final int size, final int maxWait) {
+        if(size < 0) {
+            throw new IllegalArgumentException("queue size must be >= 0");
+        }
+        if(maxWait < 0) {
+            throw new IllegalArgumentException("maxWait must be >= 0");
+        }
+        this.maxQueued = size;
+        this.maxWait = maxWait;
+        return this;
+    }
+
+    /**
+     * @param key the host or tag
+     * @return number of attempts in flight
+     */
+    public int getInFlight(final String key) {
+        final Partition partition = this.partitions.get(key);
+        if(partition == null) {
+            return 0;
+        }
+        synchronized(partition) {
+            return partition.inFlight;
+        }
+    }
+
+    /**
+     * @param key the host or tag
+     * @return number of attempts waiting for a slot
+     */
+    public int getQueued(final String key) {
+        final Partition partition = this.partitions.get(key);
+        if(partition == null) {
+            return 0;
+        }
+        synchronized(partition) {
+            return partition.waiters.size();
+        }
+    }
+
+    /**
+     * @return number of attempts rejected because the queue was full or the wait timed out
+     */
+    public long getRejectedCount() {
+        return this.rejected.sum();
+    }
+
+    static Bulkhead named(final String name) {
+        return Bulkhead.REGISTRY.computeIfAbsent(name, n -> new Bulkhead());
+    }
+
+    /**
+     * @param key the host or tag
+     * @return a future completing once a slot is held; cancelling it leaves the queue. The slot has to be given back using
+     * {@link #release(String)}.
+     * @throws BulkheadFullException if all slots are taken and the queue is full
+     */
+    CompletableFuture<Void> acquire(final String key) {
+        Partition partition = this.partitions.get(key);
+        if(partition == null) {
+            final Partition created = new Partition();
+            partition = this.partitions.putIfAbsent(key, created);
+            if(partition == null) {
+                partition = created;
+            }
+        }
+        final CompletableFuture<Void> waiter = new CompletableFuture<>();
+        synchronized(partition) {
+            if(partition.inFlight < this.maxConcurrent) {
+                partition.inFlight++;
+                return Bulkhead.GRANTED;
+            }
+            if((partition.waiters.size() >= this.maxQueued) || (this.maxWait == 0)) {
+                this.rejected.increment();
+                throw new BulkheadFullException(key);
+            }
+            partition.waiters.add(waiter);
+        }
+        final Partition queue = partition;
+        final ScheduledFuture<?> timeout = HTTPClientManager.schedule(() -> {
+            if(queue.remove(waiter)) {
+                this.rejected.increment();
+                waiter.completeExceptionally(new BulkheadFullException(key));
+            }
+        }, this.maxWait, TimeUnit.MILLISECONDS);
+        waiter.whenComplete((v, e) -> {
+            timeout.cancel(false);
+            if(waiter.isCancelled()) {
+                queue.remove(waiter);
+            }
+        });
+        return waiter;
+    }
+
+    /**
+     * Gives a slot back, handing it over to the next waiting attempt if there is one.
+     *
+     * @param key the host or tag
+     */
+    void release(final String key) {
+        final Partition partition = this.partitions.get(key);
+        if(partition == null) {
+            return;
+        }
+        while(true) {
+            final CompletableFuture<Void> next;
+            synchronized(partition) {
+                next = partition.waiters.poll();
+                if(next == null) {
+                    partition.inFlight--;
+                    return;
+                }
+            }
+            if(next.complete(null)) {
+                return;
+            }
+            // cancelled or timed out in the meantime
+        }
+    }
+
+    private static final class Partition {
+
+        private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+
+        private int inFlight;
+
+        private synchronized boolean remove(final CompletableFuture<Void> waiter) {
+            return this.waiters.remove(waiter);
+        }
+    }
+
+}
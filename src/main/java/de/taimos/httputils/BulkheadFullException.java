@@ -0,0 +1,47 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Thrown without sending a request if the {@link Bulkhead} has no free slot and its wait queue is full or the wait timed out. It is
+ * never retried.
+ *
+ * @author thoeger
+ */
+public class BulkheadFullException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String key;
+
+    public BulkheadFullException(final String key) {
+        super("bulkhead full for " + key);
+        this.key = key;
+    }
+
+    /**
+     * @return the host or tag the bulkhead partition belongs to
+     */
+    public String getKey() {
+        return this.key;
+    }
+
+}
@@ -0,0 +1,130 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Entity backed by a {@link ByteBuffer}. Heap buffers are written from their backing array and direct buffers are handed to the
+ * non-blocking client as they are, so the content is never copied into an intermediate array by the <code>*Async()</code> methods.
+ * An instance is used for one execution only.
+ *
+ * @author thoeger
+ */
+final class ByteBufferEntity extends AbstractHttpEntity implements HttpAsyncContentProducer {
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final ByteBuffer buffer;
+
+    private ByteBuffer producing;
+
+    /**
+     * @param buffer the content from position to limit; it is not modified
+     */
+    ByteBufferEntity(final ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.setContentType(ContentType.APPLICATION_OCTET_STREAM.toString());
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return this.buffer.remaining();
+    }
+
+    @Override
+    public InputStream getContent() {
+        final ByteBuffer content = this.buffer.duplicate();
+        return new InputStream() {
+
+            @Override
+            public int read() {
+                return content.hasRemaining() ? (content.get() & 0xFF) : -1;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) {
+                if(!content.hasRemaining()) {
+                    return -1;
+                }
+                final int count = Math.min(len, content.remaining());
+                content.get(b, off, count);
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return content.remaining();
+            }
+        };
+    }
+
+    @Override
+    public void writeTo(final OutputStream outStream) throws IOException {
+        if(this.buffer.hasArray()) {
+            outStream.write(this.buffer.array(), this.buffer.arrayOffset() + this.buffer.position(), this.buffer.remaining());
+            return;
+        }
+        final ByteBuffer content = this.buffer.duplicate();
+        final byte[] chunk = new byte[Math.min(ByteBufferEntity.CHUNK_SIZE, content.remaining())];
+        while(content.hasRemaining()) {
+            final int count = Math.min(chunk.length, content.remaining());
+            content.get(chunk, 0, count);
+            outStream.write(chunk, 0, count);
+        }
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    @Override
+    public void produceContent(final ContentEncoder encoder, final IOControl ioControl) throws IOException {
+        if(this.producing == null) {
+            this.producing = this.buffer.duplicate();
+        }
+        encoder.write(this.producing);
+        if(!this.producing.hasRemaining()) {
+            encoder.complete();
+        }
+    }
+
+    @Override
+    public void close() {
+        this.producing = null;
+    }
+
+}
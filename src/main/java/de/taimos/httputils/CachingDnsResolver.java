@@ -0,0 +1,232 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link DnsResolver} caching the addresses of every host for a time to live. Lookups of entries close to expiry return the cached
+ * addresses at once and refresh the entry in the background, so new connections do not wait for a slow resolver. If resolving fails
+ * the stale addresses are served for a while longer.
+ * <p>
+ * The JVM resolver does not expose the TTL of the DNS records, so the TTL is configured; keep it at or below the record TTL. The
+ * delegate is pluggable, e.g. a stub mapping host names to local addresses in tests. Use it for the pooled clients using
+ * {@link HTTPClientConfig#dnsResolver(DnsResolver)}.
+ *
+ * @author thoeger
+ */
+public final class CachingDnsResolver implements DnsResolver {
+
+    private final DnsResolver delegate;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder refreshes = new LongAdder();
+
+    private final LongAdder failures = new LongAdder();
+
+    private final LongAdder staleHits = new LongAdder();
+
+    private volatile long ttl = TimeUnit.SECONDS.toNanos(60);
+
+    private volatile double refreshAhead = 0.8;
+
+    private volatile long maxStale = TimeUnit.MINUTES.toNanos(5);
+
+    /**
+     * Caches the JVM resolver.
+     */
+    public CachingDnsResolver() {
+        this(SystemDefaultDnsResolver.INSTANCE);
+    }
+
+    /**
+     * @param delegate the resolver to cache
+     */
+    public CachingDnsResolver(final DnsResolver delegate) {
+        if(delegate == null) {
+            throw new IllegalArgumentException("delegate must not be null");
+        }
+        this.delegate = delegate;
+    }
+
+    /**
+     * @param ttl time in ms the addresses of a host are cached (default: 60000)
+     * @return this
+     */
+    public CachingDnsResolver ttl(final int ttl) {
+        if(ttl <= 0) {
+            throw new IllegalArgumentException("ttl must be > 0");
+        }
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+        return this;
+    }
+
+    /**
+     * @param percent age of an entry in percent of the TTL after which a lookup refreshes it in the background (default: 80)
+     * @return this
+     */
+    public CachingDnsResolver refreshAhead(final int percent) {
+        if((percent <= 0) || (percent > 100)) {
+            throw new IllegalArgumentException("refreshAhead must be between 1 and 100");
+        }
+        this.refreshAhead = percent / 100.0;
+        return this;
+    }
+
+    /**
+     * @param maxStale time in ms after expiry the addresses are still used if resolving fails (default: 300000)
+     * @return this
+     */
+    public CachingDnsResolver maxStale(final int maxStale) {
+        if(maxStale < 0) {
+            throw new IllegalArgumentException("maxStale must be >= 0");
+        }
+        this.maxStale = TimeUnit.MILLISECONDS.toNanos(maxStale);
+        return this;
+    }
+
+    @Override
+    public InetAddress[] resolve(final String host) throws UnknownHostException {
+        final Entry entry = this.entries.get(host);
+        if(entry == null) {
+            this.misses.increment();
+            return this.lookup(host).clone();
+        }
+        final long age = System.nanoTime() - entry.resolved;
+        if(age < this.ttl) {
+            this.hits.increment();
+            if(age >= (this.ttl * this.refreshAhead)) {
+                this.refreshAsync(host, entry);
+            }
+            return entry.addresses.clone();
+        }
+        this.misses.increment();
+        try {
+            return this.lookup(host).clone();
+        } catch(final UnknownHostException e) {
+            if(age < (this.ttl + this.maxStale)) {
+                this.staleHits.increment();
+                return entry.addresses.clone();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Drops all cached addresses.
+     */
+    public void clear() {
+        this.entries.clear();
+    }
+
+    /**
+     * @return number of lookups answered from the cache
+     */
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return number of lookups that had to wait for the delegate
+     */
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return number of background refreshes
+     */
+    public long getRefreshCount() {
+        return this.refreshes.sum();
+    }
+
+    /**
+     * @return number of failed lookups of the delegate, including background refreshes
+     */
+    public long getFailureCount() {
+        return this.failures.sum();
+    }
+
+    /**
+     * @return number of lookups answered with expired addresses because resolving failed
+     */
+    public long getStaleHitCount() {
+        return this.staleHits.sum();
+    }
+
+    private InetAddress[] lookup(final String host) throws UnknownHostException {
+        final InetAddress[] addresses;
+        try {
+            addresses = this.delegate.resolve(host);
+        } catch(final UnknownHostException | RuntimeException e) {
+            this.failures.increment();
+            throw e;
+        }
+        if((addresses != null) && (addresses.length > 0)) {
+            this.entries.put(host, new Entry(addresses));
+        }
+        return addresses;
+    }
+
+    private void refreshAsync(final String host, final Entry entry) {
+        if(!entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        this.refreshes.increment();
+        HTTPClientManager.executor().execute(() -> {
+            try {
+                this.lookup(host);
+            } catch(final UnknownHostException | RuntimeException e) {
+                // keep the current addresses; the next lookup after expiry tries again
+            } finally {
+                entry.refreshing.set(false);
+            }
+        });
+    }
+
+    private static final class Entry {
+
+        private final InetAddress[] addresses;
+
+        private final long resolved = System.nanoTime();
+
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(final InetAddress[] addresses) {
+            this.addresses = addresses;
+        }
+    }
+
+}
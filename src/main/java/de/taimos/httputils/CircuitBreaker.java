@@ -0,0 +1,329 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker keeping one circuit per target host. A circuit is closed as long as the share of failed or slow calls among the
+ * last calls stays below the thresholds. Once it trips it is open and requests fail fast with a {@link CircuitOpenException}. After
+ * the open duration it is half-open and lets a limited number of probe requests through; their outcome closes or opens the circuit
+ * again.
+ * <p>
+ * A call has failed if the {@link Retryable} of the request would retry it, or {@link Retryable#standard()} if the request has
+ * none. One instance can be used by any number of requests using {@link HTTPRequest#circuitBreaker(CircuitBreaker)}; use
+ * {@link WS#circuitBreaker(String)} to share it by name.
+ *
+ * @author thoeger
+ */
+public final class CircuitBreaker {
+
+    /**
+     * state of the circuit of one host
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final ConcurrentMap<String, CircuitBreaker> REGISTRY = new ConcurrentHashMap<>();
+
+    private static final Retryable STANDARD = Retryable.standard();
+
+    private static final int FAILED = 1;
+
+    private static final int SLOW = 2;
+
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    private volatile int failureRateThreshold = 50;
+
+    private volatile int slowCallRateThreshold = 100;
+
+    private volatile long slowCallNanos = TimeUnit.SECONDS.toNanos(60);
+
+    private volatile int slidingWindow = 100;
+
+    private volatile int minimumCalls = 10;
+
+    private volatile long openNanos = TimeUnit.SECONDS.toNanos(30);
+
+    private volatile int halfOpenCalls = 5;
+
+    /**
+     * @param percent share of failed calls in percent that opens the circuit (default: 50)
+     * @return this
+     */
+    public CircuitBreaker failureRateThreshold(final int percent) {
+        if((percent <= 0) || (percent > 100)) {
+            throw new IllegalArgumentException("failureRateThreshold must be between 1 and 100");
+        }
+        this.failureRateThreshold = percent;
+        return this;
+    }
+
+    /**
+     * @param percent  share of slow calls in percent that opens the circuit (default: 100)
+     * @param duration calls taking at least this many ms until the response headers arrive are slow (default: 60000)
+     * @return this
+     */
+    public CircuitBreaker slowCallRateThreshold(final int percent, final int duration) {
+        if((percent <= 0) || (percent > 100)) {
+            throw new IllegalArgumentException("slowCallRateThreshold must be between 1 and 100");
+        }
+        if(duration <= 0) {
+            throw new IllegalArgumentException("slow call duration must be > 0");
+        }
+        this.slowCallRateThreshold = percent;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * @param calls number of most recent calls the rates are computed from (default: 100)
+     * @return this
+     */
+    public CircuitBreaker slidingWindow(final int calls) {
+        if(calls <= 0) {
+            throw new IllegalArgumentException("slidingWindow must be > 0");
+        }
+        this.slidingWindow = calls;
+        return this;
+    }
+
+    /**
+     * @param calls number of calls in the sliding window before the circuit can open (default: 10)
+     * @return this
+     */
+    public CircuitBreaker minimumCalls(final int calls) {
+        if(calls <= 0) {
+            throw new IllegalArgumentException("minimumCalls must be > 0");
+        }
+        this.minimumCalls = calls;
+        return this;
+    }
+
+    /**
+     * @param duration time in ms the circuit stays open before probes are let through (default: 30000)
+     * @return this
+     */
+    public CircuitBreaker openDuration(final int duration) {
+        if(duration <= 0) {
+            throw new IllegalArgumentException("openDuration must be > 0");
+        }
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * @param calls number of probe calls let through while half-open (default: 5)
+     * @return this
+     */
+    public CircuitBreaker halfOpenCalls(final int calls) {
+        if(calls <= 0) {
+            throw new IllegalArgumentException("halfOpenCalls must be > 0");
+        }
+        this.halfOpenCalls = calls;
+        return this;
+    }
+
+    /**
+     * @param host the target host
+     * @return the state of the circuit of the host
+     */
+    public State getState(final String host) {
+        final Circuit circuit = this.circuits.get(host);
+        return circuit == null ? State.CLOSED : circuit.state(System.nanoTime());
+    }
+
+    /**
+     * Closes all circuits.
+     */
+    public void reset() {
+        this.circuits.clear();
+    }
+
+    static CircuitBreaker named(final String name) {
+        return CircuitBreaker.REGISTRY.computeIfAbsent(name, n -> new CircuitBreaker());
+    }
+
+    /**
+     * @param host the target host
+     * @return the permit to pass to {@link #release(String, long, Retryable, Exception, int, long)}
+     * @throws CircuitOpenException if the circuit does not let the call through
+     */
+    long acquire(final String host) {
+        Circuit circuit = this.circuits.get(host);
+        if(circuit == null) {
+            final Circuit created = new Circuit(this.slidingWindow);
+            circuit = this.circuits.putIfAbsent(host, created);
+            if(circuit == null) {
+                circuit = created;
+            }
+        }
+        final long permit = circuit.acquire(System.nanoTime());
+        if(permit < 0) {
+            throw new CircuitOpenException(host);
+        }
+        return permit;
+    }
+
+    /**
+     * Records the outcome of a call. Cancelled calls only return their permit.
+     *
+     * @param host      the target host
+     * @param permit    the permit returned by {@link #acquire(String)}
+     * @param retryable the {@link Retryable} of the request or null
+     * @param exception the failure of the call or null
+     * @param status    the status code if there was a response
+     * @param nanos     the duration of the call
+     */
+    void release(final String host, final long permit, final Retryable retryable, final Exception exception, final int status, final long nanos) {
+        final Circuit circuit = this.circuits.get(host);
+        if(circuit == null) {
+            return; // reset in the meantime
+        }
+        if(exception instanceof CancellationException) {
+            circuit.release(permit, -1);
+            return;
+        }
+        final Retryable signal = retryable == null ? CircuitBreaker.STANDARD : retryable;
+        final boolean failed = exception == null ? signal.retry(Optional.empty(), Optional.of(status)) : signal.retry(Optional.of(exception), Optional.empty());
+        circuit.release(permit, (failed ? CircuitBreaker.FAILED : 0) | (nanos >= this.slowCallNanos ? CircuitBreaker.SLOW : 0));
+    }
+
+    /**
+     * The state of one host. Every state change starts a new generation so late results of calls from an earlier state are ignored.
+     */
+    private final class Circuit {
+
+        private final byte[] window;
+
+        private State state = State.CLOSED;
+
+        private long generation;
+
+        private long openedAt;
+
+        private int position;
+
+        private int calls;
+
+        private int failures;
+
+        private int slowCalls;
+
+        private int permits;
+
+        private Circuit(final int size) {
+            this.window = new byte[size];
+        }
+
+        private synchronized State state(final long now) {
+            if((this.state == State.OPEN) && ((now - this.openedAt) >= CircuitBreaker.this.openNanos)) {
+                return State.HALF_OPEN;
+            }
+            return this.state;
+        }
+
+        /**
+         * @return the generation or -1 if the call is rejected
+         */
+        private synchronized long acquire(final long now) {
+            if(this.state == State.OPEN) {
+                if((now - this.openedAt) < CircuitBreaker.this.openNanos) {
+                    return -1;
+                }
+                this.transition(State.HALF_OPEN);
+            }
+            if(this.state == State.HALF_OPEN) {
+                if(this.permits >= CircuitBreaker.this.halfOpenCalls) {
+                    return -1;
+                }
+                this.permits++;
+            }
+            return this.generation;
+        }
+
+        /**
+         * @param permit  the generation the call was let through in
+         * @param outcome combination of FAILED and SLOW or -1 if the call was cancelled
+         */
+        private synchronized void release(final long permit, final int outcome) {
+            if(permit != this.generation) {
+                return;
+            }
+            if(outcome < 0) {
+                if(this.state == State.HALF_OPEN) {
+                    this.permits--;
+                }
+                return;
+            }
+            if(this.state == State.HALF_OPEN) {
+                this.record(outcome);
+                if(this.calls >= Math.min(CircuitBreaker.this.halfOpenCalls, this.window.length)) {
+                    this.transition(this.tripped() ? State.OPEN : State.CLOSED);
+                }
+            } else if(this.state == State.CLOSED) {
+                this.record(outcome);
+                if((this.calls >= CircuitBreaker.this.minimumCalls) && this.tripped()) {
+                    this.transition(State.OPEN);
+                }
+            }
+        }
+
+        private void record(final int outcome) {
+            if(this.calls == this.window.length) {
+                final byte evicted = this.window[this.position];
+                this.failures -= evicted & CircuitBreaker.FAILED;
+                this.slowCalls -= (evicted & CircuitBreaker.SLOW) >> 1;
+            } else {
+                this.calls++;
+            }
+            this.window[this.position] = (byte) outcome;
+            this.failures += outcome & CircuitBreaker.FAILED;
+            this.slowCalls += (outcome & CircuitBreaker.SLOW) >> 1;
+            this.position = (this.position + 1) % this.window.length;
+        }
+
+        private boolean tripped() {
+            return ((this.failures * 100) >= (CircuitBreaker.this.failureRateThreshold * this.calls))
+                    || ((this.slowCalls * 100) >= (CircuitBreaker.this.slowCallRateThreshold * this.calls));
+        }
+
+        private void transition(final State next) {
+            this.state = next;
+            this.generation++;
+            this.position = 0;
+            this.calls = 0;
+            this.failures = 0;
+            this.slowCalls = 0;
+            this.permits = 0;
+            if(next == State.OPEN) {
+                this.openedAt = System.nanoTime();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,46 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Thrown without sending a request while the {@link CircuitBreaker} of the target host is open. It is never retried.
+ *
+ * @author thoeger
+ */
+public class CircuitOpenException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String host;
+
+    public CircuitOpenException(final String host) {
+        super("circuit open for host " + host);
+        this.host = host;
+    }
+
+    /**
+     * @return the host the circuit is open for
+     */
+    public String getHost() {
+        return this.host;
+    }
+
+}
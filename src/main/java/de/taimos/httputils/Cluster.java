@@ -0,0 +1,370 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client side load balancing over replicas of a service. Every attempt, including retries and hedges, is sent to an instance picked
+ * by the {@link LoadBalancer}; a retry goes to a different instance if there is one. Instances are ejected for a while if their
+ * failure rate, or optionally their latency, stands out, so requests avoid them until they had time to recover.
+ * <p>
+ * Failure rate and latency are exponentially weighted over roughly the last 10 calls of an instance. A call has failed if the
+ * {@link Retryable} of the request would retry it, or {@link Retryable#standard()} if the request has none. Circuit breakers, rate
+ * limiters, bulkheads and metrics see the host of the instance; caches, coalescing, hedging and the retry budget are keyed by the
+ * first base URL. Create one instance per service using {@link WS#cluster(List)} and keep it.
+ *
+ * @author thoeger
+ */
+public final class Cluster {
+
+    private static final Retryable STANDARD = Retryable.standard();
+
+    /** weight of the newest call in the moving averages */
+    private static final double DECAY = 0.1;
+
+    private final List<Instance> instances;
+
+    private volatile LoadBalancer balancer = LoadBalancer.roundRobin();
+
+    private volatile double failureRateThreshold = 0.5;
+
+    private volatile double slowCallFactor = 0;
+
+    private volatile double slowCallMicros = 0;
+
+    private volatile int minimumCalls = 10;
+
+    private volatile long ejectionNanos = TimeUnit.SECONDS.toNanos(30);
+
+    private volatile int maxEjectionPercent = 50;
+
+    Cluster(final List<String> baseUrls) {
+        if((baseUrls == null) || baseUrls.isEmpty()) {
+            throw new IllegalArgumentException("baseUrls must not be empty");
+        }
+        final List<Instance> list = new ArrayList<>(baseUrls.size());
+        for(final String baseUrl : baseUrls) {
+            list.add(new Instance(baseUrl));
+        }
+        this.instances = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * @param path the path below the base URLs with optional placeholders and query, e.g. <code>/users/{id}</code>
+     * @return the {@link HTTPRequest} sent to the instances of this cluster
+     */
+    public HTTPRequest url(final String path) {
+        return new HTTPRequest(path, this);
+    }
+
+    /**
+     * @param balancer the {@link LoadBalancer} picking the instance (default: {@link LoadBalancer#roundRobin()})
+     * @return this
+     */
+    public Cluster balancer(final LoadBalancer balancer) {
+        if(balancer == null) {
+            throw new IllegalArgumentException("balancer must not be null");
+        }
+        this.balancer = balancer;
+        return this;
+    }
+
+    /**
+     * @param percent failure rate in percent that ejects an instance (default: 50)
+     * @return this
+     */
+    public Cluster failureRateThreshold(final int percent) {
+        if((percent <= 0) || (percent > 100)) {
+            throw new IllegalArgumentException("failureRateThreshold must be between 1 and 100");
+        }
+        this.failureRateThreshold = percent / 100.0;
+        return this;
+    }
+
+    /**
+     * Eject instances that are much slower than the others (default: disabled).
+     *
+     * @param factor   an instance is ejected if its latency is this many times the mean latency of the other instances
+     * @param duration and at least this many ms, so differences between fast instances do not count
+     * @return this
+     */
+    public Cluster slowCallEjection(final double factor, final int duration) {
+        if(factor <= 1) {
+            throw new IllegalArgumentException("factor must be > 1");
+        }
+        if(duration < 0) {
+            throw new IllegalArgumentException("duration must be >= 0");
+        }
+        this.slowCallFactor = factor;
+        this.slowCallMicros = TimeUnit.MILLISECONDS.toMicros(duration);
+        return this;
+    }
+
+    /**
+     * @param calls number of calls of an instance before it can be ejected (default: 10)
+     * @return this
+     */
+    public Cluster minimumCalls(final int calls) {
+        if(calls <= 0) {
+            throw new IllegalArgumentException("minimumCalls must be > 0");
+        }
+        this.minimumCalls = calls;
+        return this;
+    }
+
+    /**
+     * @param duration time in ms an ejected instance gets no requests (default: 30000)
+     * @return this
+     */
+    public Cluster ejectionDuration(final int duration) {
+        if(duration <= 0) {
+            throw new IllegalArgumentException("ejectionDuration must be > 0");
+        }
+        this.ejectionNanos = TimeUnit.MILLISECONDS.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * @param percent maximum share of instances ejected at the same time (default: 50)
+     * @return this
+     */
+    public Cluster maxEjectionPercent(final int percent) {
+        if((percent < 0) || (percent > 100)) {
+            throw new IllegalArgumentException("maxEjectionPercent must be between 0 and 100");
+        }
+        this.maxEjectionPercent = percent;
+        return this;
+    }
+
+    /**
+     * @return the instances in the order of the base URLs
+     */
+    public List<Instance> getInstances() {
+        return this.instances;
+    }
+
+    /**
+     * @param relative the path and query of the request
+     * @return the URI requests are keyed by, resolved against the first base URL
+     */
+    URI resolve(final URI relative) {
+        return this.instances.get(0).resolve(relative);
+    }
+
+    /**
+     * @param previous the instance of the failed attempt or null
+     * @return the instance to send the next attempt to
+     */
+    Instance choose(final Instance previous) {
+        final long now = System.nanoTime();
+        final List<Instance> candidates = new ArrayList<>(this.instances.size());
+        for(final Instance instance : this.instances) {
+            if((instance != previous) && !instance.isEjected(now)) {
+                candidates.add(instance);
+            }
+        }
+        if(candidates.isEmpty()) {
+            if((previous != null) && !previous.isEjected(now)) {
+                return previous;
+            }
+            // all instances are ejected; spreading the load beats failing every request
+            candidates.addAll(this.instances);
+        }
+        return this.balancer.choose(candidates);
+    }
+
+    private int ejectedCount(final long now) {
+        int ejected = 0;
+        for(final Instance instance : this.instances) {
+            if(instance.isEjected(now)) {
+                ejected++;
+            }
+        }
+        return ejected;
+    }
+
+    /**
+     * @return the mean latency of the available instances other than the given one with enough calls, or 0 if there are none
+     */
+    private double meanLatency(final Instance except, final long now) {
+        double sum = 0;
+        int count = 0;
+        for(final Instance instance : this.instances) {
+            if((instance != except) && !instance.isEjected(now) && (instance.calls >= this.minimumCalls)) {
+                sum += instance.latency;
+                count++;
+            }
+        }
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * One replica of the service.
+     */
+    public final class Instance {
+
+        private final String baseUrl;
+
+        private final String prefix;
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private final LongAdder ejections = new LongAdder();
+
+        private volatile long calls;
+
+        private volatile double failureRate;
+
+        private volatile double latency;
+
+        private volatile boolean ejected;
+
+        private volatile long ejectedUntil;
+
+        private Instance(final String baseUrl) {
+            final URI uri = URI.create(baseUrl);
+            if(!uri.isAbsolute() || (uri.getHost() == null)) {
+                throw new IllegalArgumentException("base URL must be absolute: " + baseUrl);
+            }
+            this.baseUrl = baseUrl;
+            this.prefix = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        }
+
+        /**
+         * @return the base URL
+         */
+        public String getBaseUrl() {
+            return this.baseUrl;
+        }
+
+        /**
+         * @return number of attempts in flight
+         */
+        public int getOutstanding() {
+            return this.outstanding.get();
+        }
+
+        /**
+         * @return the moving average of the latency in microseconds until the response headers arrive
+         */
+        public double getLatency() {
+            return this.latency;
+        }
+
+        /**
+         * @return the moving average of the failure rate between 0 and 1
+         */
+        public double getFailureRate() {
+            return this.failureRate;
+        }
+
+        /**
+         * @return true if the instance is ejected and gets no requests
+         */
+        public boolean isEjected() {
+            return this.isEjected(System.nanoTime());
+        }
+
+        /**
+         * @return number of times the instance was ejected
+         */
+        public long getEjectionCount() {
+            return this.ejections.sum();
+        }
+
+        @Override
+        public String toString() {
+            return this.baseUrl;
+        }
+
+        URI resolve(final URI relative) {
+            final String path = relative.getRawPath() == null ? "" : relative.getRawPath();
+            final StringBuilder uri = new StringBuilder(this.prefix);
+            if(!path.startsWith("/")) {
+                uri.append('/');
+            }
+            uri.append(path);
+            if(relative.getRawQuery() != null) {
+                uri.append('?').append(relative.getRawQuery());
+            }
+            return URI.create(uri.toString());
+        }
+
+        void started() {
+            this.outstanding.incrementAndGet();
+        }
+
+        /**
+         * Records the outcome of an attempt and ejects the instance if it stands out.
+         */
+        void finished(final Retryable retryable, final Exception exception, final int status, final long nanos) {
+            this.outstanding.decrementAndGet();
+            if(exception instanceof CancellationException) {
+                return;
+            }
+            final Retryable signal = retryable == null ? Cluster.STANDARD : retryable;
+            final boolean failed = exception == null ? signal.retry(Optional.empty(), Optional.of(status)) : signal.retry(Optional.of(exception), Optional.empty());
+            final long now = System.nanoTime();
+            synchronized(this) {
+                final double micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+                this.calls++;
+                // plain mean while warming up so the first call does not dominate
+                final double weight = Math.max(Cluster.DECAY, 1.0 / this.calls);
+                this.failureRate += weight * ((failed ? 1 : 0) - this.failureRate);
+                this.latency += weight * (micros - this.latency);
+                if(this.ejected || (this.calls < Cluster.this.minimumCalls)) {
+                    return;
+                }
+                boolean slow = false;
+                if((Cluster.this.slowCallFactor > 0) && (this.latency >= Cluster.this.slowCallMicros)) {
+                    final double mean = Cluster.this.meanLatency(this, now);
+                    slow = (mean > 0) && (this.latency > (Cluster.this.slowCallFactor * mean));
+                }
+                if(((this.failureRate >= Cluster.this.failureRateThreshold) || slow)
+                        && ((Cluster.this.ejectedCount(now) + 1) * 100 <= Cluster.this.instances.size() * Cluster.this.maxEjectionPercent)) {
+                    this.ejectedUntil = now + Cluster.this.ejectionNanos;
+                    this.ejected = true;
+                    this.ejections.increment();
+                    // start over once it is back
+                    this.calls = 0;
+                    this.failureRate = 0;
+                }
+            }
+        }
+
+        private boolean isEjected(final long now) {
+            if(this.ejected && ((now - this.ejectedUntil) >= 0)) {
+                this.ejected = false;
+            }
+            return this.ejected;
+        }
+    }
+
+}
@@ -0,0 +1,251 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Request body compression and streaming response decompression.
+ *
+ * @author thoeger
+ */
+final class Compression {
+
+    /**
+     * bodies up to this size are compressed once when the request is prepared instead of on every execution
+     */
+    private static final long PRECOMPRESS_LIMIT = 1024 * 1024;
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private Compression() {
+        //
+    }
+
+    /**
+     * @param body      the body supplier
+     * @param encoding  the encoding to use
+     * @param threshold bodies with a known length below this are not compressed
+     * @return the supplier of the compressed body
+     */
+    static Supplier<HttpEntity> compress(final Supplier<HttpEntity> body, final HTTPRequest.Encoding encoding, final int threshold) {
+        final HttpEntity sample = body.get();
+        final long length = sample.getContentLength();
+        if((length >= 0) && (length < threshold)) {
+            return body;
+        }
+        if(sample.isRepeatable() && !sample.isStreaming() && (length >= 0) && (length <= Compression.PRECOMPRESS_LIMIT)) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream((int) (length / 4) + 64);
+            try (final OutputStream compressing = encoding == HTTPRequest.Encoding.GZIP ? new GZIPOutputStream(out, Compression.BUFFER_SIZE) : new DeflaterOutputStream(out)) {
+                sample.writeTo(compressing);
+            } catch(final IOException e) {
+                throw new RuntimeException("Failed to compress body", e);
+            }
+            final ByteArrayEntity compressed = new ByteArrayEntity(out.toByteArray());
+            compressed.setContentType(sample.getContentType());
+            compressed.setContentEncoding(encoding.getName());
+            return () -> compressed;
+        }
+        return () -> new CompressingEntity(body.get(), encoding);
+    }
+
+    /**
+     * Replaces a gzip or deflate encoded entity with one that decompresses while it is read.
+     *
+     * @param response the response to decode
+     */
+    static void decode(final HttpResponse response) {
+        final HttpEntity entity = response.getEntity();
+        if((entity == null) || (entity.getContentEncoding() == null)) {
+            return;
+        }
+        final HeaderElement[] codecs = entity.getContentEncoding().getElements();
+        if(codecs.length != 1) {
+            return;
+        }
+        final String codec = codecs[0].getName().toLowerCase();
+        if("gzip".equals(codec) || "x-gzip".equals(codec)) {
+            response.setEntity(new GzipDecompressingEntity(entity));
+        } else if("deflate".equals(codec)) {
+            response.setEntity(new DeflateDecompressingEntity(entity));
+        } else {
+            return;
+        }
+        response.removeHeaders(WSConstants.HEADER_CONTENT_LENGTH);
+        response.removeHeaders("Content-Encoding");
+        response.removeHeaders(WSConstants.HEADER_CONTENT_MD5);
+    }
+
+    /**
+     * Compresses while the content is read, so it works for streamed bodies with both the blocking and the non-blocking client.
+     */
+    private static final class CompressingEntity extends HttpEntityWrapper {
+
+        private final HTTPRequest.Encoding encoding;
+
+        private CompressingEntity(final HttpEntity wrapped, final HTTPRequest.Encoding encoding) {
+            super(wrapped);
+            this.encoding = encoding;
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return new BasicHeader("Content-Encoding", this.encoding.getName());
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public boolean isChunked() {
+            return true;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            final InputStream content = this.wrappedEntity.getContent();
+            if(this.encoding == HTTPRequest.Encoding.DEFLATE) {
+                return Compression.deflating(content, new Deflater());
+            }
+            final GzipTrailer trailer = new GzipTrailer(content);
+            return new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                    new ByteArrayInputStream(Compression.GZIP_HEADER),
+                    Compression.deflating(trailer, new Deflater(Deflater.DEFAULT_COMPRESSION, true)),
+                    trailer.stream())));
+        }
+
+        @Override
+        public void writeTo(final OutputStream outStream) throws IOException {
+            try (final InputStream in = this.getContent()) {
+                final byte[] buffer = new byte[Compression.BUFFER_SIZE];
+                int read;
+                while((read = in.read(buffer)) >= 0) {
+                    outStream.write(buffer, 0, read);
+                }
+            }
+        }
+    }
+
+    private static InputStream deflating(final InputStream in, final Deflater deflater) {
+        return new DeflaterInputStream(in, deflater, Compression.BUFFER_SIZE) {
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Tracks CRC and size of the uncompressed content to produce the gzip trailer once it is read completely.
+     */
+    private static final class GzipTrailer extends FilterInputStream {
+
+        private final CRC32 crc = new CRC32();
+
+        private long size;
+
+        private GzipTrailer(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if(b >= 0) {
+                this.crc.update(b);
+                this.size++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if(read > 0) {
+                this.crc.update(b, off, read);
+                this.size += read;
+            }
+            return read;
+        }
+
+        private InputStream stream() {
+            return new InputStream() {
+
+                private ByteArrayInputStream bytes;
+
+                private ByteArrayInputStream bytes() {
+                    if(this.bytes == null) {
+                        final long crc = GzipTrailer.this.crc.getValue();
+                        final long size = GzipTrailer.this.size;
+                        this.bytes = new ByteArrayInputStream(new byte[] {
+                                (byte) crc, (byte) (crc >> 8), (byte) (crc >> 16), (byte) (crc >> 24),
+                                (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)});
+                    }
+                    return this.bytes;
+                }
+
+                @Override
+                public int read() {
+                    return this.bytes().read();
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len) {
+                    return this.bytes().read(b, off, len);
+                }
+            };
+        }
+    }
+
+}
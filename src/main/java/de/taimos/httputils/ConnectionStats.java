@@ -0,0 +1,83 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Reuse and eviction counts of the pool used by the blocking client since the last {@link WS#configure(HTTPClientConfig)}. Get it
+ * using {@link WS#connectionStats()}.
+ *
+ * @author thoeger
+ */
+public final class ConnectionStats {
+
+    private final long leased;
+
+    private final long created;
+
+    private final long evicted;
+
+    ConnectionStats(final long leased, final long created, final long evicted) {
+        this.leased = leased;
+        this.created = created;
+        this.evicted = evicted;
+    }
+
+    /**
+     * @return number of connections taken from the pool
+     */
+    public long getLeaseCount() {
+        return this.leased;
+    }
+
+    /**
+     * @return number of new connections opened
+     */
+    public long getCreatedCount() {
+        return this.created;
+    }
+
+    /**
+     * @return number of leases that reused an open connection
+     */
+    public long getReusedCount() {
+        return Math.max(0, this.leased - this.created);
+    }
+
+    /**
+     * @return the share of leases that reused an open connection, between 0 and 1
+     */
+    public double getReuseRate() {
+        return this.leased == 0 ? 0 : (double) this.getReusedCount() / this.leased;
+    }
+
+    /**
+     * @return number of idle connections closed by the background evictor because their keep-alive or time to live expired
+     */
+    public long getEvictedCount() {
+        return this.evicted;
+    }
+
+    @Override
+    public String toString() {
+        return "leased=" + this.leased + " created=" + this.created + " reuseRate=" + this.getReuseRate() + " evicted=" + this.evicted;
+    }
+
+}
@@ -0,0 +1,139 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.config.Registry;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The pool of the blocking client, counting leased, newly created and evicted connections to tell how well connections are reused.
+ * It also tracks the connections currently in use, so a replaced pool can be shut down once its last response is closed.
+ *
+ * @author thoeger
+ */
+final class CountingConnectionManager extends PoolingHttpClientConnectionManager {
+
+    private final LongAdder leased = new LongAdder();
+
+    private final LongAdder created;
+
+    private final LongAdder evicted = new LongAdder();
+
+    private final AtomicInteger inUse = new AtomicInteger();
+
+    private final AtomicReference<Closeable> retiredOwner = new AtomicReference<>();
+
+    CountingConnectionManager(final Registry<ConnectionSocketFactory> registry, final DnsResolver dnsResolver, final long ttl) {
+        this(registry, dnsResolver, ttl, new LongAdder());
+    }
+
+    private CountingConnectionManager(final Registry<ConnectionSocketFactory> registry, final DnsResolver dnsResolver, final long ttl, final LongAdder created) {
+        super(registry, (route, config) -> {
+            created.increment();
+            return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+        }, null, dnsResolver, ttl, TimeUnit.MILLISECONDS);
+        this.created = created;
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(final HttpRoute route, final Object state) {
+        final ConnectionRequest request = super.requestConnection(route, state);
+        return new ConnectionRequest() {
+
+            @Override
+            public HttpClientConnection get(final long timeout, final TimeUnit timeUnit) throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                final HttpClientConnection connection = request.get(timeout, timeUnit);
+                CountingConnectionManager.this.leased.increment();
+                CountingConnectionManager.this.inUse.incrementAndGet();
+                return connection;
+            }
+
+            @Override
+            public boolean cancel() {
+                return request.cancel();
+            }
+        };
+    }
+
+    @Override
+    public void releaseConnection(final HttpClientConnection managedConn, final Object state, final long keepalive, final TimeUnit timeUnit) {
+        super.releaseConnection(managedConn, state, keepalive, timeUnit);
+        if(this.inUse.decrementAndGet() == 0) {
+            this.closeRetired();
+        }
+    }
+
+    /**
+     * Closes the owner of a replaced pool, which shuts the pool down, as soon as no connection is in use anymore.
+     *
+     * @param owner the client using this pool
+     */
+    void closeWhenReleased(final Closeable owner) {
+        this.retiredOwner.set(owner);
+        if(this.inUse.get() == 0) {
+            this.closeRetired();
+        }
+    }
+
+    private void closeRetired() {
+        final Closeable owner = this.retiredOwner.getAndSet(null);
+        if(owner != null) {
+            try {
+                owner.close();
+            } catch(final IOException e) {
+                // nothing left to release
+            }
+        }
+    }
+
+    /**
+     * Closes the idle connections whose keep-alive or time to live has expired.
+     */
+    void evictExpired() {
+        final long now = System.currentTimeMillis();
+        this.enumAvailable(entry -> {
+            if(entry.isExpired(now)) {
+                entry.close();
+                this.evicted.increment();
+            }
+        });
+    }
+
+    ConnectionStats stats() {
+        return new ConnectionStats(this.leased.sum(), this.created.sum(), this.evicted.sum());
+    }
+
+}
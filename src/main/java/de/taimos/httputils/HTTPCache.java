@@ -0,0 +1,624 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Bounded cache for responses to GET requests. Entries are evicted least recently used first when the maximum number of
+ * entries or bytes in memory is exceeded; evicted entries move to an optional disk tier. Freshness follows
+ * <code>Cache-Control: max-age</code> and <code>Expires</code>; stale entries are revalidated using <code>If-None-Match</code> and
+ * <code>If-Modified-Since</code> and served from the cache on <code>304 Not Modified</code>. Entries are keyed by the URI and
+ * the <code>Accept</code>, <code>Accept-Encoding</code> and <code>User-Agent</code> headers of the request, so responses with <code>Vary</code> on other headers
+ * or <code>Vary: *</code> are not cached, nor are <code>no-store</code> responses. Responses marked <code>Cache-Control: private</code>
+ * are not cached, and requests with <code>Authorization</code> or <code>Cookie</code> headers only use responses marked
+ * <code>Cache-Control: public</code>, so one caller never gets the private response of another.
+ * <p>
+ * One instance can be shared by any number of requests using {@link HTTPRequest#cache(HTTPCache)}.
+ *
+ * @author thoeger
+ */
+public final class HTTPCache {
+
+    private static final int NOT_MODIFIED = 304;
+
+    /** request headers that are part of the key, so responses may vary on them */
+    private static final List<String> KEYED = Arrays.asList(WSConstants.HEADER_ACCEPT, WSConstants.HEADER_ACCEPT_ENCODING, WSConstants.HEADER_USER_AGENT);
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder revalidations = new LongAdder();
+
+    private final LongAdder bytesServed = new LongAdder();
+
+    private final Map<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Map<String, Entry> disk = new LinkedHashMap<>(16, 0.75f, true);
+
+    private volatile int maxEntries = 1000;
+
+    private volatile long maxBytes = 64L * 1024 * 1024;
+
+    private volatile long maxEntryBytes = 1024L * 1024;
+
+    private volatile Path diskDirectory;
+
+    private volatile long maxDiskBytes;
+
+    private long memoryBytes;
+
+    private long diskBytes;
+
+    /**
+     * @param max maximum number of entries in memory (default: 1000)
+     * @return this
+     */
+    public HTTPCache maxEntries(final int max) {
+        if(max <= 0) {
+            throw new IllegalArgumentException("maxEntries must be > 0");
+        }
+        this.maxEntries = max;
+        return this;
+    }
+
+    /**
+     * @param max maximum number of body bytes in memory (default: 64 MiB)
+     * @return this
+     */
+    public HTTPCache maxBytes(final long max) {
+        if(max <= 0) {
+            throw new IllegalArgumentException("maxBytes must be > 0");
+        }
+        this.maxBytes = max;
+        return this;
+    }
+
+    /**
+     * @param max bodies larger than this are not cached (default: 1 MiB)
+     * @return this
+     */
+    public HTTPCache maxEntryBytes(final long max) {
+        if(max <= 0) {
+            throw new IllegalArgumentException("maxEntryBytes must be > 0");
+        }
+        this.maxEntryBytes = max;
+        return this;
+    }
+
+    /**
+     * Enables the disk tier. Entries evicted from memory are written to the directory and moved back to memory when they are hit.
+     * The disk tier does not survive a restart.
+     *
+     * @param directory existing directory to store bodies in
+     * @param max       maximum number of body bytes on disk
+     * @return this
+     */
+    public HTTPCache disk(final Path directory, final long max) {
+        if(!Files.isDirectory(directory)) {
+            throw new IllegalArgumentException("Not a directory: " + directory);
+        }
+        this.diskDirectory = directory;
+        this.maxDiskBytes = max;
+        return this;
+    }
+
+    /**
+     * @return number of requests served from the cache without contacting the server
+     */
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return number of requests without a usable cache entry
+     */
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return number of requests served from the cache after the server answered <code>304 Not Modified</code>
+     */
+    public long getRevalidationCount() {
+        return this.revalidations.sum();
+    }
+
+    /**
+     * @return number of body bytes served from the cache instead of the network
+     */
+    public long getBytesServed() {
+        return this.bytesServed.sum();
+    }
+
+    /**
+     * @return number of entries in memory and on disk
+     */
+    public synchronized int size() {
+        return this.memory.size() + this.disk.size();
+    }
+
+    /**
+     * removes all entries
+     */
+    public void clear() {
+        final List<Entry> removed;
+        synchronized(this) {
+            removed = new ArrayList<>(this.disk.values());
+            this.memory.clear();
+            this.disk.clear();
+            this.memoryBytes = 0;
+            this.diskBytes = 0;
+        }
+        removed.forEach(Entry::deleteFile);
+    }
+
+    HTTPResponse execute(final URI uri, final Header[] headers, final Function<Header[], HTTPResponse> call) {
+        final String key = HTTPCache.key(uri, headers);
+        final boolean credentials = HTTPCache.hasCredentials(headers);
+        final Entry entry = this.lookup(key, credentials);
+        if((entry != null) && entry.isFresh()) {
+            return this.hit(entry);
+        }
+        return this.handle(key, credentials, entry, call.apply(HTTPCache.conditionalHeaders(entry)));
+    }
+
+    CompletableFuture<HTTPResponse> executeAsync(final URI uri, final Header[] headers, final Function<Header[], CompletableFuture<HTTPResponse>> call) {
+        final String key = HTTPCache.key(uri, headers);
+        final boolean credentials = HTTPCache.hasCredentials(headers);
+        final Entry entry = this.lookup(key, credentials);
+        if((entry != null) && entry.isFresh()) {
+            return CompletableFuture.completedFuture(this.hit(entry));
+        }
+        // thenApply would wrap exceptions in a CompletionException
+        final CompletableFuture<HTTPResponse> result = new CompletableFuture<>();
+        call.apply(HTTPCache.conditionalHeaders(entry)).whenComplete((response, e) -> {
+            if(e != null) {
+                result.completeExceptionally(e);
+                return;
+            }
+            try {
+                result.complete(this.handle(key, credentials, entry, response));
+            } catch(final RuntimeException ex) {
+                result.completeExceptionally(ex);
+            }
+        });
+        return result;
+    }
+
+    private HTTPResponse hit(final Entry entry) {
+        this.hits.increment();
+        this.bytesServed.add(entry.body.length);
+        return entry.toResponse();
+    }
+
+    /**
+     * @return the key of the representation requested: the URI and the {@link #KEYED} headers
+     */
+    private static String key(final URI uri, final Header[] headers) {
+        final StringBuilder key = new StringBuilder(uri.toString());
+        for(final String name : HTTPCache.KEYED) {
+            key.append('\n');
+            for(final Header header : headers) {
+                if(header.getName().equalsIgnoreCase(name)) {
+                    key.append(header.getValue()).append(',');
+                }
+            }
+        }
+        return key.toString();
+    }
+
+    private static boolean hasCredentials(final Header[] headers) {
+        for(final Header header : headers) {
+            if(header.getName().equalsIgnoreCase(WSConstants.HEADER_AUTHORIZATION) || header.getName().equalsIgnoreCase(WSConstants.HEADER_COOKIE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the response may be shared with other callers although the request carried credentials
+     */
+    private static boolean isPublic(final Header[] headers) {
+        return HTTPCache.hasDirective(headers, "public");
+    }
+
+    private static boolean hasDirective(final Header[] headers, final String directive) {
+        for(final Header header : headers) {
+            if(header.getName().equalsIgnoreCase(WSConstants.HEADER_CACHE_CONTROL)) {
+                for(final HeaderElement element : header.getElements()) {
+                    if(directive.equalsIgnoreCase(element.getName())) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the response varies only on headers that are part of the key
+     */
+    private static boolean isVaryKeyed(final HttpResponse response) {
+        for(final Header header : response.getHeaders("Vary")) {
+            for(final HeaderElement element : header.getElements()) {
+                if(HTTPCache.KEYED.stream().noneMatch(element.getName().trim()::equalsIgnoreCase)) {
+                    return false; // including *
+                }
+            }
+        }
+        return true;
+    }
+
+    private HTTPResponse handle(final String key, final boolean credentials, final Entry entry, final HTTPResponse response) {
+        if((entry != null) && (response.getStatus() == HTTPCache.NOT_MODIFIED)) {
+            response.close();
+            this.revalidations.increment();
+            this.bytesServed.add(entry.body.length);
+            final Entry updated = entry.revalidated(response.getResponse());
+            this.store(key, updated);
+            return updated.toResponse();
+        }
+        this.misses.increment();
+        final long freshUntil = HTTPCache.freshUntil(response.getResponse());
+        final Header[] headers = response.getResponse().getAllHeaders();
+        if((freshUntil == Long.MIN_VALUE) || HTTPCache.hasDirective(headers, "private") || (credentials && !HTTPCache.isPublic(headers))) {
+            return response;
+        }
+        final HttpResponse raw = response.getResponse();
+        final HttpEntity entity = raw.getEntity();
+        if((entity != null) && (entity.getContentLength() > this.maxEntryBytes)) {
+            return response;
+        }
+        final byte[] body;
+        try {
+            body = this.readBounded(raw);
+        } catch(final IOException e) {
+            response.close();
+            throw new RuntimeException(e);
+        }
+        if(body == null) {
+            return response; // too large; the entity now replays the bytes already read
+        }
+        final Entry created = new Entry(raw.getStatusLine().getStatusCode(), raw.getStatusLine().getReasonPhrase(), raw.getAllHeaders(), body, freshUntil);
+        this.store(key, created);
+        return created.toResponse();
+    }
+
+    /**
+     * @return the body or null if it exceeds {@link #maxEntryBytes}; the entity of the response is replaced to replay it in this case
+     */
+    private byte[] readBounded(final HttpResponse response) throws IOException {
+        final HttpEntity entity = response.getEntity();
+        if(entity == null) {
+            return new byte[0];
+        }
+        final InputStream in = entity.getContent();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+            if(out.size() > this.maxEntryBytes) {
+                final InputStreamEntity replay = new InputStreamEntity(new SequenceInputStream(new ByteArrayInputStream(out.toByteArray()), in), -1);
+                replay.setContentType(entity.getContentType());
+                response.setEntity(replay);
+                return null;
+            }
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * @param credentials true if the request carries credentials; only public entries are returned then
+     */
+    private Entry lookup(final String key, final boolean credentials) {
+        final Entry onDisk;
+        synchronized(this) {
+            final Entry inMemory = this.memory.get(key);
+            if(inMemory != null) {
+                return !credentials || HTTPCache.isPublic(inMemory.headers) ? inMemory : null;
+            }
+            final Entry candidate = this.disk.get(key);
+            if((candidate != null) && credentials && !HTTPCache.isPublic(candidate.headers)) {
+                return null;
+            }
+            onDisk = this.disk.remove(key);
+            if(onDisk == null) {
+                return null;
+            }
+            this.diskBytes -= onDisk.size;
+        }
+        try {
+            final Entry loaded = onDisk.load();
+            this.store(key, loaded);
+            return loaded;
+        } catch(final IOException e) {
+            return null;
+        } finally {
+            onDisk.deleteFile();
+        }
+    }
+
+    private void store(final String key, final Entry entry) {
+        final List<Map.Entry<String, Entry>> evicted = new ArrayList<>();
+        final List<Entry> deleted = new ArrayList<>();
+        synchronized(this) {
+            final Entry previous = this.memory.put(key, entry);
+            if(previous != null) {
+                this.memoryBytes -= previous.size;
+            }
+            this.memoryBytes += entry.size;
+            final Iterator<Map.Entry<String, Entry>> eldest = this.memory.entrySet().iterator();
+            while((this.memory.size() > this.maxEntries) || (this.memoryBytes > this.maxBytes)) {
+                final Map.Entry<String, Entry> next = eldest.next();
+                eldest.remove();
+                this.memoryBytes -= next.getValue().size;
+                if(next.getValue() != entry) {
+                    evicted.add(next);
+                }
+            }
+            final Entry stale = this.disk.remove(key);
+            if(stale != null) {
+                this.diskBytes -= stale.size;
+                deleted.add(stale);
+            }
+        }
+        deleted.forEach(Entry::deleteFile);
+        final Path directory = this.diskDirectory;
+        if(directory != null) {
+            evicted.forEach(e -> this.spill(directory, e.getKey(), e.getValue()));
+        }
+    }
+
+    private void spill(final Path directory, final String key, final Entry entry) {
+        final Entry spilled;
+        try {
+            spilled = entry.spill(directory.resolve(UUID.randomUUID().toString()));
+        } catch(final IOException e) {
+            return; // the entry is dropped
+        }
+        final List<Entry> deleted = new ArrayList<>();
+        synchronized(this) {
+            final Entry previous = this.disk.put(key, spilled);
+            if(previous != null) {
+                this.diskBytes -= previous.size;
+                deleted.add(previous);
+            }
+            this.diskBytes += spilled.size;
+            final Iterator<Entry> eldest = this.disk.values().iterator();
+            while(this.diskBytes > this.maxDiskBytes) {
+                final Entry next = eldest.next();
+                eldest.remove();
+                this.diskBytes -= next.size;
+                deleted.add(next);
+            }
+        }
+        deleted.forEach(Entry::deleteFile);
+    }
+
+    private static Header[] conditionalHeaders(final Entry entry) {
+        if(entry == null) {
+            return new Header[0];
+        }
+        final List<Header> headers = new ArrayList<>(2);
+        if(entry.etag != null) {
+            headers.add(new BasicHeader(WSConstants.HEADER_IF_NONE_MATCH, entry.etag));
+        }
+        if(entry.lastModified != null) {
+            headers.add(new BasicHeader(WSConstants.HEADER_IF_MODIFIED_SINCE, entry.lastModified));
+        }
+        return headers.toArray(new Header[0]);
+    }
+
+    /**
+     * @return the time in ms until the response is fresh or {@link Long#MIN_VALUE} if it must not be stored
+     */
+    static long freshUntil(final HttpResponse response) {
+        if((response.getStatusLine().getStatusCode() != 200) || !HTTPCache.isVaryKeyed(response)) {
+            return Long.MIN_VALUE;
+        }
+        final long now = System.currentTimeMillis();
+        Long maxAge = null;
+        for(final Header header : response.getHeaders(WSConstants.HEADER_CACHE_CONTROL)) {
+            for(final HeaderElement element : header.getElements()) {
+                final String name = element.getName();
+                if("no-store".equalsIgnoreCase(name)) {
+                    return Long.MIN_VALUE;
+                }
+                if("no-cache".equalsIgnoreCase(name)) {
+                    maxAge = 0L;
+                } else if("max-age".equalsIgnoreCase(name) && (maxAge == null)) {
+                    try {
+                        maxAge = Long.parseLong(element.getValue());
+                    } catch(final NumberFormatException e) {
+                        maxAge = 0L;
+                    }
+                }
+            }
+        }
+        final long freshUntil;
+        if(maxAge != null) {
+            freshUntil = now + (maxAge * 1000) - (HTTPCache.age(response) * 1000);
+        } else if(response.containsHeader("Expires")) {
+            final Date expires = DateUtils.parseDate(response.getFirstHeader("Expires").getValue());
+            final Date date = response.containsHeader(WSConstants.HEADER_DATE) ? DateUtils.parseDate(response.getFirstHeader(WSConstants.HEADER_DATE).getValue()) : null;
+            freshUntil = expires == null ? now : now + (expires.getTime() - (date == null ? now : date.getTime()));
+        } else {
+            freshUntil = now;
+        }
+        if((freshUntil <= now) && !response.containsHeader("ETag") && !response.containsHeader("Last-Modified")) {
+            return Long.MIN_VALUE; // can neither be served nor revalidated
+        }
+        return freshUntil;
+    }
+
+    private static long age(final HttpResponse response) {
+        final Header age = response.getFirstHeader("Age");
+        if(age == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(age.getValue().trim()));
+        } catch(final NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static final class Entry {
+
+        private final int status;
+
+        private final String reason;
+
+        private final Header[] headers;
+
+        /**
+         * null if the body is stored in {@link #file}
+         */
+        private final byte[] body;
+
+        private final Path file;
+
+        private final long size;
+
+        private final long freshUntil;
+
+        private final String etag;
+
+        private final String lastModified;
+
+        private Entry(final int status, final String reason, final Header[] headers, final byte[] body, final long freshUntil) {
+            this(status, reason, headers, body, null, body.length, freshUntil);
+        }
+
+        private Entry(final int status, final String reason, final Header[] headers, final byte[] body, final Path file, final long size, final long freshUntil) {
+            this.status = status;
+            this.reason = reason;
+            this.headers = headers;
+            this.body = body;
+            this.file = file;
+            this.size = size;
+            this.freshUntil = freshUntil;
+            this.etag = Entry.value(headers, "ETag");
+            this.lastModified = Entry.value(headers, "Last-Modified");
+        }
+
+        private boolean isFresh() {
+            return System.currentTimeMillis() < this.freshUntil;
+        }
+
+        private HTTPResponse toResponse() {
+            final BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, this.status, this.reason);
+            response.setHeaders(this.headers);
+            final ByteArrayEntity entity = new ByteArrayEntity(this.body);
+            entity.setContentType(response.getFirstHeader(WSConstants.HEADER_CONTENT_TYPE));
+            response.setEntity(entity);
+            return new HTTPResponse(response);
+        }
+
+        /**
+         * @param notModified the 304 response; its headers replace the stored ones
+         */
+        private Entry revalidated(final HttpResponse notModified) {
+            final List<Header> merged = new ArrayList<>();
+            for(final Header header : this.headers) {
+                if(!notModified.containsHeader(header.getName()) || Entry.isEntityHeader(header.getName())) {
+                    merged.add(header);
+                }
+            }
+            for(final Header header : notModified.getAllHeaders()) {
+                if(!Entry.isEntityHeader(header.getName())) {
+                    merged.add(header);
+                }
+            }
+            final BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, this.status, this.reason);
+            response.setHeaders(merged.toArray(new Header[0]));
+            final long fresh = HTTPCache.freshUntil(response);
+            return new Entry(this.status, this.reason, response.getAllHeaders(), this.body, fresh == Long.MIN_VALUE ? 0 : fresh);
+        }
+
+        private Entry spill(final Path target) throws IOException {
+            Files.write(target, this.body);
+            return new Entry(this.status, this.reason, this.headers, null, target, this.size, this.freshUntil);
+        }
+
+        private Entry load() throws IOException {
+            return new Entry(this.status, this.reason, this.headers, Files.readAllBytes(this.file), this.freshUntil);
+        }
+
+        private void deleteFile() {
+            if(this.file != null) {
+                try {
+                    Files.deleteIfExists(this.file);
+                } catch(final IOException e) {
+                    // left behind in the cache directory
+                }
+            }
+        }
+
+        private static boolean isEntityHeader(final String name) {
+            return WSConstants.HEADER_CONTENT_LENGTH.equalsIgnoreCase(name) || "Content-Encoding".equalsIgnoreCase(name) || "Transfer-Encoding".equalsIgnoreCase(name);
+        }
+
+        private static String value(final Header[] headers, final String name) {
+            for(final Header header : headers) {
+                if(header.getName().equalsIgnoreCase(name)) {
+                    return header.getValue();
+                }
+            }
+            return null;
+        }
+    }
+
+}
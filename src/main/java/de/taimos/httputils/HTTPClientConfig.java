@@ -0,0 +1,251 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.apache.http.conn.DnsResolver;
+
+/**
+ * Configuration of the pooled HTTP clients shared by all {@link HTTPRequest}s. Apply it using {@link WS#configure(HTTPClientConfig)}.
+ *
+ * @author thoeger
+ */
+public final class HTTPClientConfig {
+
+    private volatile int maxTotal = 200;
+
+    private volatile int maxPerRoute = 20;
+
+    private volatile long connectionTTL = -1;
+
+    private volatile int validateAfterInactivity = 2000;
+
+    private volatile int connectionRequestTimeout = -1;
+
+    private volatile int keepAlive = 30000;
+
+    private volatile int evictionInterval = 5000;
+
+    private volatile int ioThreads = Runtime.getRuntime().availableProcessors();
+
+    private volatile boolean virtualThreads = false;
+
+    private volatile boolean http2 = false;
+
+    private volatile DnsResolver dnsResolver = null;
+
+    private volatile HTTPMetrics metrics = null;
+
+    private volatile RetryBudget retryBudget = null;
+
+    /**
+     * @param max maximum number of connections in the pool (default: 200)
+     * @return this
+     */
+    public HTTPClientConfig maxTotal(final int max) {
+        if(max <= 0) {
+            throw new IllegalArgumentException("maxTotal must be > 0");
+        }
+        this.maxTotal = max;
+        return this;
+    }
+
+    /**
+     * @param max maximum number of connections per route, i.e. per scheme, host and port (default: 20)
+     * @return this
+     */
+    public HTTPClientConfig maxPerRoute(final int max) {
+        if(max <= 0) {
+            throw new IllegalArgumentException("maxPerRoute must be > 0");
+        }
+        this.maxPerRoute = max;
+        return this;
+    }
+
+    /**
+     * @param ttl total time to live of a connection in ms; values &lt;= 0 mean infinite (default: infinite)
+     * @return this
+     */
+    public HTTPClientConfig connectionTTL(final long ttl) {
+        this.connectionTTL = ttl;
+        return this;
+    }
+
+    /**
+     * @param inactivity period of inactivity in ms after which a pooled connection is validated before it is leased; values &lt;= 0
+     *                   disable validation (default: 2000)
+     * @return this
+     */
+    public HTTPClientConfig validateAfterInactivity(final int inactivity) {
+        this.validateAfterInactivity = inactivity;
+        return this;
+    }
+
+    /**
+     * @param timeout time in ms to wait for a connection from the pool; values &lt;= 0 wait forever (default: forever). A request
+     *                specific {@link HTTPRequest#timeout(int)} takes precedence.
+     * @return this
+     */
+    public HTTPClientConfig connectionRequestTimeout(final int timeout) {
+        this.connectionRequestTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * @param keepAlive maximum time in ms an idle connection is kept for reuse. A shorter <code>Keep-Alive: timeout=</code> sent by the
+     *                  server takes precedence. Values &lt;= 0 keep connections until the server hint or the TTL expires (default: 30000)
+     * @return this
+     */
+    public HTTPClientConfig keepAlive(final int keepAlive) {
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+    /**
+     * @param interval period in ms in which a background task closes idle connections whose keep-alive or TTL expired, before the server
+     *                 closes them under a request; values &lt;= 0 disable the evictor (default: 5000)
+     * @return this
+     */
+    public HTTPClientConfig evictionInterval(final int interval) {
+        this.evictionInterval = interval;
+        return this;
+    }
+
+    /**
+     * @param threads number of I/O dispatcher threads of the non-blocking client used by the <code>*Async()</code> methods (default:
+     *                number of processors)
+     * @return this
+     */
+    public HTTPClientConfig ioThreads(final int threads) {
+        if(threads <= 0) {
+            throw new IllegalArgumentException("ioThreads must be > 0");
+        }
+        this.ioThreads = threads;
+        return this;
+    }
+
+    /**
+     * Run the <code>*Async()</code> methods and their callbacks on a virtual thread per task instead of the non-blocking client and the
+     * cached thread pool. Requires Java 21 or newer; on older JVMs the default mode is used.
+     *
+     * @param enabled <code>true</code> to use virtual threads if available (default: false)
+     * @return this
+     */
+    public HTTPClientConfig virtualThreads(final boolean enabled) {
+        this.virtualThreads = enabled;
+        return this;
+    }
+
+    /**
+     * Send all requests over HTTP/2 using HttpClient 5, multiplexing concurrent requests over one connection per host. TLS connections
+     * negotiate HTTP/2 using ALPN, plain connections use h2c with prior knowledge, so the server has to support HTTP/2. Bodies are buffered
+     * in memory and the pool settings do not apply. Requires <code>org.apache.httpcomponents.client5:httpclient5</code> on the classpath.
+     *
+     * @param enabled <code>true</code> to use HTTP/2 (default: false)
+     * @return this
+     */
+    public HTTPClientConfig http2(final boolean enabled) {
+        this.http2 = enabled;
+        return this;
+    }
+
+    /**
+     * @param resolver the {@link DnsResolver} used by the pooled clients to look up hosts, e.g. a {@link CachingDnsResolver}; null uses
+     *                 the JVM resolver (default: JVM resolver). The HTTP/2 transport always uses the JVM resolver.
+     * @return this
+     */
+    public HTTPClientConfig dnsResolver(final DnsResolver resolver) {
+        this.dnsResolver = resolver;
+        return this;
+    }
+
+    /**
+     * @param listener the {@link HTTPMetrics} to report every attempt to, e.g. a {@link MetricsRecorder}; null disables metrics
+     *                 (default: disabled)
+     * @return this
+     */
+    public HTTPClientConfig metrics(final HTTPMetrics listener) {
+        this.metrics = listener;
+        return this;
+    }
+
+    /**
+     * @param budget the {@link RetryBudget} limiting the retries of all requests that do not set their own; null allows unlimited
+     *               retries (default: unlimited)
+     * @return this
+     */
+    public HTTPClientConfig retryBudget(final RetryBudget budget) {
+        this.retryBudget = budget;
+        return this;
+    }
+
+    int getMaxTotal() {
+        return this.maxTotal;
+    }
+
+    int getMaxPerRoute() {
+        return this.maxPerRoute;
+    }
+
+    long getConnectionTTL() {
+        return this.connectionTTL;
+    }
+
+    int getValidateAfterInactivity() {
+        return this.validateAfterInactivity;
+    }
+
+    int getConnectionRequestTimeout() {
+        return this.connectionRequestTimeout;
+    }
+
+    int getKeepAlive() {
+        return this.keepAlive;
+    }
+
+    int getEvictionInterval() {
+        return this.evictionInterval;
+    }
+
+    int getIoThreads() {
+        return this.ioThreads;
+    }
+
+    boolean isVirtualThreads() {
+        return this.virtualThreads;
+    }
+
+    boolean isHttp2() {
+        return this.http2;
+    }
+
+    DnsResolver getDnsResolver() {
+        return this.dnsResolver;
+    }
+
+    HTTPMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    RetryBudget getRetryBudget() {
+        return this.retryBudget;
+    }
+
+}
@@ -0,0 +1,445 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the pooled {@link CloseableHttpClient} and the lazily started {@link CloseableHttpAsyncClient} shared by all {@link HTTPRequest}s.
+ *
+ * @author thoeger
+ */
+final class HTTPClientManager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HTTPClientManager.class);
+
+    private static final Executor CACHED_EXECUTOR = Executors.newCachedThreadPool(HTTPClientManager.daemonThreadFactory("httputils-worker"));
+
+    /**
+     * the default handler resending idempotent requests after I/O errors, except when the thread was interrupted to abort the request,
+     * e.g. a cancelled request on a virtual thread or the loser of a hedged request
+     */
+    private static final HttpRequestRetryHandler RETRY_HANDLER = new DefaultHttpRequestRetryHandler() {
+
+        @Override
+        public boolean retryRequest(final IOException exception, final int executionCount, final HttpContext context) {
+            return !Thread.currentThread().isInterrupted() && super.retryRequest(exception, executionCount, context);
+        }
+    };
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(HTTPClientManager.daemonThreadFactory("httputils-timer"));
+
+    private static volatile Executor virtualExecutor;
+
+    private static volatile HTTPClientConfig config = new HTTPClientConfig();
+
+    private static volatile State state = HTTPClientManager.createState(HTTPClientManager.config);
+
+    private HTTPClientManager() {
+        //
+    }
+
+    /**
+     * @param newConfig the new configuration; the current pool is replaced and its idle connections are closed, it is shut down when
+     *                  the last response using it is closed; in-flight asynchronous requests of the replaced client are aborted
+     */
+    static synchronized void configure(final HTTPClientConfig newConfig) {
+        if(newConfig == null) {
+            throw new IllegalArgumentException("config must not be null");
+        }
+        HTTPClientManager.config = newConfig;
+        HTTPClientManager.reset();
+    }
+
+    /**
+     * recreates the client using the current configuration
+     */
+    static synchronized void reset() {
+        final State old = HTTPClientManager.state;
+        HTTPClientManager.state = HTTPClientManager.createState(HTTPClientManager.config);
+        // the old client and its pool are shut down once the responses still holding leased connections are closed
+        old.connectionManager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+        old.connectionManager.closeWhenReleased(old.client);
+        old.stopEvictor();
+        old.closeAsync();
+    }
+
+    static CloseableHttpClient client() {
+        return HTTPClientManager.state.client;
+    }
+
+    /**
+     * @return the executor to run callbacks and other blocking work on
+     */
+    static Executor executor() {
+        final State current = HTTPClientManager.state;
+        return current.virtualThreads ? HTTPClientManager.virtualExecutor : HTTPClientManager.CACHED_EXECUTOR;
+    }
+
+    /**
+     * Runs the task on the {@link #executor()} after the delay without holding a thread while waiting.
+     *
+     * @param task  the task to run
+     * @param delay the delay
+     * @param unit  the unit of the delay
+     * @return the future to cancel the task before it starts
+     */
+    static ScheduledFuture<?> schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        return HTTPClientManager.SCHEDULER.schedule(() -> HTTPClientManager.executor().execute(task), delay, unit);
+    }
+
+    /**
+     * @return true if asynchronous requests run blocking on virtual threads instead of the non-blocking client
+     */
+    static boolean isVirtualThreads() {
+        return HTTPClientManager.state.virtualThreads;
+    }
+
+    /**
+     * @return the configured {@link HTTPMetrics} or null
+     */
+    static HTTPMetrics metrics() {
+        return HTTPClientManager.state.config.getMetrics();
+    }
+
+    /**
+     * @return the default {@link RetryBudget} or null
+     */
+    static RetryBudget retryBudget() {
+        return HTTPClientManager.state.config.getRetryBudget();
+    }
+
+    /**
+     * @return the non-blocking client; it is created and started on first use
+     */
+    static CloseableHttpAsyncClient asyncClient() {
+        return HTTPClientManager.state.async().client;
+    }
+
+    /**
+     * @return the HTTP/2 transport or null if HTTP/2 is disabled; it is created and started on first use
+     */
+    static Http2Transport http2() {
+        final State current = HTTPClientManager.state;
+        return current.config.isHttp2() ? current.http2() : null;
+    }
+
+    /**
+     * @return true if requests are sent using the HTTP/2 transport instead of the pooled clients
+     */
+    static boolean isHttp2() {
+        return HTTPClientManager.state.config.isHttp2();
+    }
+
+    /**
+     * @return the maximum time in ms an idle connection is kept for reuse; values &lt;= 0 for no maximum
+     */
+    static int keepAlive() {
+        return HTTPClientManager.state.config.getKeepAlive();
+    }
+
+    /**
+     * @return the pool of the blocking client
+     */
+    static PoolingHttpClientConnectionManager connectionManager() {
+        return HTTPClientManager.state.connectionManager;
+    }
+
+    /**
+     * @param name the prefix of the thread names
+     * @return a {@link ThreadFactory} creating daemon threads so the library never prevents the JVM from exiting
+     */
+    static ThreadFactory daemonThreadFactory(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * @return the client wide defaults every request configuration is derived from
+     */
+    static RequestConfig requestConfig() {
+        return HTTPClientManager.state.requestConfig;
+    }
+
+    static PoolStats totalStats() {
+        return HTTPClientManager.state.connectionManager.getTotalStats();
+    }
+
+    static PoolStats routeStats(final URI uri) {
+        return HTTPClientManager.state.connectionManager.getStats(HTTPClientManager.route(uri));
+    }
+
+    static ConnectionStats connectionStats() {
+        return HTTPClientManager.state.connectionManager.stats();
+    }
+
+    /**
+     * @return the stats of the non-blocking pool; empty if the non-blocking client has not been started, without starting it
+     */
+    static PoolStats asyncTotalStats() {
+        final State current = HTTPClientManager.state;
+        final AsyncState async = current.async;
+        return async == null ? new PoolStats(0, 0, 0, current.config.getMaxTotal()) : async.connectionManager.getTotalStats();
+    }
+
+    static HttpRoute route(final URI uri) {
+        final boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+        int port = uri.getPort();
+        if(port < 0) {
+            port = secure ? 443 : 80;
+        }
+        return new HttpRoute(new HttpHost(uri.getHost(), port, uri.getScheme()), null, secure);
+    }
+
+    private static State createState(final HTTPClientConfig cfg) {
+        final Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", SSLConnectionSocketFactory.getSocketFactory())
+                .build();
+        final CountingConnectionManager connectionManager = new CountingConnectionManager(registry, cfg.getDnsResolver(), cfg.getConnectionTTL());
+        connectionManager.setMaxTotal(cfg.getMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(cfg.getMaxPerRoute());
+        connectionManager.setValidateAfterInactivity(cfg.getValidateAfterInactivity());
+
+        final RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(cfg.getConnectionRequestTimeout())
+                .build();
+        final CloseableHttpClient client = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(HTTPClientManager.keepAliveStrategy(cfg.getKeepAlive()))
+                .disableContentCompression() // done by PreparedRequest for both clients
+                .setRetryHandler(HTTPClientManager.RETRY_HANDLER)
+                .build();
+        final State created = new State(cfg, connectionManager, client, requestConfig, cfg.isVirtualThreads() && HTTPClientManager.initVirtualExecutor());
+        if(cfg.getEvictionInterval() > 0) {
+            created.evictor = HTTPClientManager.SCHEDULER.scheduleWithFixedDelay(created::evict, cfg.getEvictionInterval(), cfg.getEvictionInterval(), TimeUnit.MILLISECONDS);
+        }
+        return created;
+    }
+
+    /**
+     * @param max the maximum keep-alive in ms; values &lt;= 0 for no maximum
+     * @return the strategy using the <code>Keep-Alive: timeout=</code> of the server, limited to the maximum
+     */
+    private static ConnectionKeepAliveStrategy keepAliveStrategy(final long max) {
+        return (response, context) -> {
+            final long hint = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            if(max <= 0) {
+                return hint;
+            }
+            return hint > 0 ? Math.min(hint, max) : max;
+        };
+    }
+
+    /**
+     * @return true if virtual threads are supported by the running JVM
+     */
+    private static synchronized boolean initVirtualExecutor() {
+        if(HTTPClientManager.virtualExecutor == null) {
+            try {
+                // Java 21+; looked up reflectively to keep the library running on older JVMs
+                HTTPClientManager.virtualExecutor = (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch(final ReflectiveOperationException e) {
+                HTTPClientManager.LOGGER.warn("Virtual threads are not supported by this JVM; using the default async mode");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static AsyncState createAsyncState(final HTTPClientConfig cfg, final RequestConfig requestConfig) {
+        final IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(cfg.getIoThreads())
+                .build();
+        final PoolingNHttpClientConnectionManager connectionManager;
+        try {
+            final Registry<SchemeIOSessionStrategy> registry = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                    .register("http", NoopIOSessionStrategy.INSTANCE)
+                    .register("https", SSLIOSessionStrategy.getDefaultStrategy())
+                    .build();
+            final DefaultConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(ioReactorConfig, HTTPClientManager.daemonThreadFactory("httputils-io"));
+            connectionManager = new PoolingNHttpClientConnectionManager(ioReactor, null, registry, null, cfg.getDnsResolver(), cfg.getConnectionTTL(), TimeUnit.MILLISECONDS);
+        } catch(final IOReactorException e) {
+            throw new RuntimeException("Failed to create I/O reactor", e);
+        }
+        connectionManager.setMaxTotal(cfg.getMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(cfg.getMaxPerRoute());
+
+        final CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(HTTPClientManager.keepAliveStrategy(cfg.getKeepAlive()))
+                .setThreadFactory(HTTPClientManager.daemonThreadFactory("httputils-reactor"))
+                .build();
+        client.start();
+        return new AsyncState(connectionManager, client);
+    }
+
+    private static final class State {
+
+        private final HTTPClientConfig config;
+
+        private final CountingConnectionManager connectionManager;
+
+        private final CloseableHttpClient client;
+
+        private final RequestConfig requestConfig;
+
+        private final boolean virtualThreads;
+
+        private volatile AsyncState async;
+
+        private volatile Http2Transport http2;
+
+        private volatile ScheduledFuture<?> evictor;
+
+        private State(final HTTPClientConfig config, final CountingConnectionManager connectionManager, final CloseableHttpClient client, final RequestConfig requestConfig, final boolean virtualThreads) {
+            this.config = config;
+            this.connectionManager = connectionManager;
+            this.client = client;
+            this.requestConfig = requestConfig;
+            this.virtualThreads = virtualThreads;
+        }
+
+        private AsyncState async() {
+            AsyncState current = this.async;
+            if(current == null) {
+                synchronized(this) {
+                    current = this.async;
+                    if(current == null) {
+                        current = HTTPClientManager.createAsyncState(this.config, this.requestConfig);
+                        this.async = current;
+                    }
+                }
+            }
+            return current;
+        }
+
+        private Http2Transport http2() {
+            Http2Transport current = this.http2;
+            if(current == null) {
+                synchronized(this) {
+                    current = this.http2;
+                    if(current == null) {
+                        try {
+                            current = new Http2Transport(this.config);
+                        } catch(final NoClassDefFoundError e) {
+                            throw new IllegalStateException("HTTP/2 requires org.apache.httpcomponents.client5:httpclient5 on the classpath", e);
+                        }
+                        this.http2 = current;
+                    }
+                }
+            }
+            return current;
+        }
+
+        /**
+         * Closes expired idle connections of both pools; the non-blocking pool notices connections closed by the server on its own, so
+         * only the blocking pool counts evictions.
+         */
+        private void evict() {
+            try {
+                this.connectionManager.evictExpired();
+                final AsyncState current = this.async;
+                if(current != null) {
+                    current.connectionManager.closeExpiredConnections();
+                }
+            } catch(final RuntimeException e) {
+                // keep the evictor scheduled
+                HTTPClientManager.LOGGER.warn("Failed to evict idle connections", e);
+            }
+        }
+
+        private void stopEvictor() {
+            if(this.evictor != null) {
+                this.evictor.cancel(false);
+            }
+        }
+
+        private synchronized void closeAsync() {
+            try {
+                if(this.async != null) {
+                    this.async.client.close();
+                }
+                if(this.http2 != null) {
+                    this.http2.close();
+                }
+            } catch(final IOException e) {
+                // nothing left to release
+            }
+        }
+    }
+
+    private static final class AsyncState {
+
+        private final PoolingNHttpClientConnectionManager connectionManager;
+
+        private final CloseableHttpAsyncClient client;
+
+        private AsyncState(final PoolingNHttpClientConnectionManager connectionManager, final CloseableHttpAsyncClient client) {
+            this.connectionManager = connectionManager;
+            this.client = client;
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Listener for request metrics. Register it with {@link HTTPClientConfig#metrics(HTTPMetrics)}. Events are reported per attempt, so a
+ * request with two retries reports three started attempts. <code>host</code> is the target host and <code>route</code> the path of
+ * the URL template the request was built from, e.g. <code>/users/{id}</code>, so concrete path parameters do not create new routes.
+ * <p>
+ * Methods are called on the request threads and the I/O threads of the non-blocking client and must not block. All methods do
+ * nothing by default. {@link MetricsRecorder} is a lock-free implementation keeping histograms and counters in memory.
+ *
+ * @author thoeger
+ */
+public interface HTTPMetrics {
+
+    /**
+     * An attempt is sent.
+     *
+     * @param host  the target host
+     * @param route the route template
+     */
+    default void started(final String host, final String route) {
+        //
+    }
+
+    /**
+     * An attempt received a response.
+     *
+     * @param host   the target host
+     * @param route  the route template
+     * @param status the status code
+     * @param nanos  time from sending the request until the response headers arrived
+     */
+    default void completed(final String host, final String route, final int status, final long nanos) {
+        //
+    }
+
+    /**
+     * An attempt failed without a response.
+     *
+     * @param host  the target host
+     * @param route the route template
+     * @param e     the cause
+     * @param nanos time from sending the request until the failure
+     */
+    default void failed(final String host, final String route, final Exception e, final long nanos) {
+        //
+    }
+
+    /**
+     * A retry is scheduled.
+     *
+     * @param host   the target host
+     * @param route  the route template
+     * @param retry  the retry, starting at 0
+     * @param waitMs time in ms the {@link WaitStrategy} waits before the retry
+     */
+    default void retry(final String host, final String route, final int retry, final long waitMs) {
+        //
+    }
+
+    /**
+     * A retry was skipped because the {@link RetryBudget} of the host is spent.
+     *
+     * @param host  the target host
+     * @param route the route template
+     */
+    default void retryBudgetExhausted(final String host, final String route) {
+        //
+    }
+
+    /**
+     * An attempt was rejected because its {@link Bulkhead} partition was saturated.
+     *
+     * @param host  the target host
+     * @param route the route template
+     */
+    default void bulkheadFull(final String host, final String route) {
+        //
+    }
+
+    /**
+     * @param host  the target host
+     * @param route the route template
+     * @param bytes size of a request body; bodies of unknown length are not reported
+     */
+    default void sent(final String host, final String route, final long bytes) {
+        //
+    }
+
+    /**
+     * @param host  the target host
+     * @param route the route template
+     * @param bytes size of a response body as transferred; bodies of unknown length are reported once they are read or closed
+     */
+    default void received(final String host, final String route, final long bytes) {
+        //
+    }
+
+}
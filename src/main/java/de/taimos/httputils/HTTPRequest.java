@@ -21,10 +21,11 @@ package de.taimos.httputils;
  */
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.config.RequestConfig.Builder;
 import org.apache.http.client.methods.HttpDelete;
-import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpOptions;
@@ -33,34 +34,43 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.nio.entity.NFileEntity;
 
-import java.io.IOException;
+import java.io.File;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 
 /**
  * @author thoeger
  */
 public final class HTTPRequest {
 
-    private static final Executor DEFAULT_EXECUTOR = Executors.newCachedThreadPool();
+    private final String url;
 
-    private static CloseableHttpClient DEFAULT_HTTP_CLIENT = HttpClientBuilder.create().build();
+    private final URLTemplate template;
 
-    private final String url;
+    private final Cluster cluster;
 
     private final Map<String, List<String>> headers = new ConcurrentHashMap<>();
 
@@ -72,7 +82,7 @@ public final class HTTPRequest {
 
     private volatile boolean followRedirect = true;
 
-    private volatile String body = "";
+    private volatile Supplier<HttpEntity> body = HTTPRequest.entity(new StringEntity("", StandardCharsets.UTF_8));
 
     private volatile String userAgent = null;
 
@@ -82,18 +92,59 @@ public final class HTTPRequest {
 
     private volatile WaitStrategy waitStrategy = null;
 
+    private volatile HTTPCache cache = null;
+
+    private volatile CircuitBreaker circuitBreaker = null;
+
+    private volatile RetryBudget retryBudget = null;
+
+    private volatile Hedging hedging = null;
+
+    private volatile SingleFlight singleFlight = null;
+
+    private volatile RateLimiter rateLimiter = null;
+
+    private volatile Bulkhead bulkhead = null;
+
+    private volatile String bulkheadTag = null;
+
+    private volatile Encoding requestEncoding = null;
+
+    private volatile int compressThreshold = 0;
+
+    private volatile boolean decompress = true;
+
     /**
      * @param url URL
      */
     HTTPRequest(final String url) {
-        this.url = url;
+        this(url, null);
+    }
+
+    /**
+     * @param path    path below the base URLs of the cluster
+     * @param cluster the {@link Cluster} to send the request to
+     */
+    HTTPRequest(final String path, final Cluster cluster) {
+        this.url = path;
+        this.template = null;
+        this.cluster = cluster;
+    }
+
+    /**
+     * @param template compiled URL template
+     */
+    HTTPRequest(final URLTemplate template) {
+        this.url = template.toString();
+        this.template = template;
+        this.cluster = null;
     }
 
     /**
      * resets the http client
      */
     public static void resetHTTPClient() {
-        HTTPRequest.DEFAULT_HTTP_CLIENT = HttpClientBuilder.create().build();
+        HTTPClientManager.reset();
     }
 
     /**
@@ -183,6 +234,122 @@ public final class HTTPRequest {
         return this.retry(5, Retryable.standard(), WaitStrategy.exponentialBackoff());
     }
 
+    /**
+     * Serve GET requests from the given cache if possible and store cacheable responses in it.
+     *
+     * @param responseCache the {@link HTTPCache} to use
+     * @return this
+     */
+    public HTTPRequest cache(final HTTPCache responseCache) {
+        this.cache = responseCache;
+        return this;
+    }
+
+    /**
+     * Guard the request with a per-host {@link CircuitBreaker}. While the circuit of the target host is open the request fails with a
+     * {@link CircuitOpenException} without being sent, and pending retries are abandoned.
+     *
+     * @param breaker the {@link CircuitBreaker} to use, e.g. one shared using {@link WS#circuitBreaker(String)}
+     * @return this
+     */
+    public HTTPRequest circuitBreaker(final CircuitBreaker breaker) {
+        this.circuitBreaker = breaker;
+        return this;
+    }
+
+    /**
+     * @param budget the {@link RetryBudget} to spend retries from instead of the one configured using
+     *               {@link HTTPClientConfig#retryBudget(RetryBudget)}
+     * @return this
+     */
+    public HTTPRequest retryBudget(final RetryBudget budget) {
+        this.retryBudget = budget;
+        return this;
+    }
+
+    /**
+     * Hedge GET, HEAD and OPTIONS requests: send a second request if the response is slow and use the first one that arrives. Other
+     * methods are never hedged.
+     *
+     * @param hedging the {@link Hedging} configuration to use
+     * @return this
+     */
+    public HTTPRequest hedge(final Hedging hedging) {
+        this.hedging = hedging;
+        return this;
+    }
+
+    /**
+     * Share one network call between identical concurrent GET, HEAD and OPTIONS requests. Other methods are never coalesced.
+     *
+     * @param singleFlight the {@link SingleFlight} to coalesce in
+     * @return this
+     */
+    public HTTPRequest coalesce(final SingleFlight singleFlight) {
+        this.singleFlight = singleFlight;
+        return this;
+    }
+
+    /**
+     * Limit the rate of attempts, including retries, sent to the target host or route.
+     *
+     * @param limiter the {@link RateLimiter} to take permits from
+     * @return this
+     */
+    public HTTPRequest rateLimit(final RateLimiter limiter) {
+        this.rateLimiter = limiter;
+        return this;
+    }
+
+    /**
+     * Limit the number of concurrent attempts to the target host.
+     *
+     * @param bulkhead the {@link Bulkhead} to take a slot from
+     * @return this
+     */
+    public HTTPRequest bulkhead(final Bulkhead bulkhead) {
+        return this.bulkhead(bulkhead, null);
+    }
+
+    /**
+     * Limit the number of concurrent attempts of all requests sharing the tag, e.g. all calls to one dependency across hosts.
+     *
+     * @param bulkhead the {@link Bulkhead} to take a slot from
+     * @param tag      the partition of the bulkhead; null to use the target host
+     * @return this
+     */
+    public HTTPRequest bulkhead(final Bulkhead bulkhead, final String tag) {
+        this.bulkhead = bulkhead;
+        this.bulkheadTag = tag;
+        return this;
+    }
+
+    /**
+     * Compress the body if it is larger than the threshold. Bodies of unknown length are always compressed.
+     *
+     * @param encoding  the {@link Encoding} to use
+     * @param threshold minimum body size in bytes to compress
+     * @return this
+     */
+    public HTTPRequest compress(final Encoding encoding, final int threshold) {
+        if(encoding == null) {
+            throw new IllegalArgumentException("encoding must not be null");
+        }
+        this.requestEncoding = encoding;
+        this.compressThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * @param enabled <code>true</code> to accept gzip and deflate encoded responses and decompress them while reading the body;
+     *                <code>false</code> to leave the Accept-Encoding header and the response body untouched (default: true)
+     * @return this
+     */
+    public HTTPRequest decompress(final boolean enabled) {
+        this.decompress = enabled;
+        return this;
+    }
+
     /**
      * @param agent the user agent string to use
      * @return this
@@ -250,10 +417,57 @@ public final class HTTPRequest {
      * @return this
      */
     public HTTPRequest body(final String bodyString) {
-        this.body = bodyString;
+        this.body = HTTPRequest.entity(new StringEntity(bodyString, StandardCharsets.UTF_8));
+        return this;
+    }
+
+    /**
+     * @param bodyBytes the body entity; the array is not copied and must not be modified until the request is done
+     * @return this
+     */
+    public HTTPRequest body(final byte[] bodyBytes) {
+        this.body = HTTPRequest.entity(new ByteArrayEntity(bodyBytes, ContentType.APPLICATION_OCTET_STREAM));
+        return this;
+    }
+
+    /**
+     * @param bodyBuffer the body entity from the current position to the limit; the buffer is not copied and must not be modified
+     *                   until the request is done. Direct buffers are written to the socket as they are by the <code>*Async()</code>
+     *                   methods.
+     * @return this
+     */
+    public HTTPRequest body(final ByteBuffer bodyBuffer) {
+        final ByteBuffer buffer = bodyBuffer.duplicate();
+        this.body = () -> new ByteBufferEntity(buffer);
         return this;
     }
 
+    /**
+     * @param bodyFile the file to stream as body entity. The <code>*Async()</code> methods transfer it using the {@link FileChannel}
+     *                 without copying it to the heap.
+     * @return this
+     */
+    public HTTPRequest body(final Path bodyFile) {
+        final File file = bodyFile.toFile();
+        this.body = () -> new NFileEntity(file, ContentType.APPLICATION_OCTET_STREAM);
+        return this;
+    }
+
+    /**
+     * @param bodyStream the stream to send as body entity; it can only be sent once, so the request is neither retried nor hedged and a
+     *                   redirect that resends the body fails
+     * @param length     the number of bytes in the stream or -1 if unknown to use chunked transfer encoding
+     * @return this
+     */
+    public HTTPRequest body(final InputStream bodyStream, final long length) {
+        this.body = HTTPRequest.entity(new InputStreamEntity(bodyStream, length, ContentType.APPLICATION_OCTET_STREAM));
+        return this;
+    }
+
+    private static Supplier<HttpEntity> entity(final HttpEntity entity) {
+        return () -> entity;
+    }
+
     /**
      * @param form the form content
      * @return this
@@ -326,11 +540,81 @@ public final class HTTPRequest {
         return this.execute(Method.HEAD);
     }
 
+    /**
+     * Executes the request without blocking a thread while it is in flight. Dependent stages without an explicit executor run on the
+     * I/O dispatcher thread and must not block.
+     *
+     * @return the future {@link HTTPResponse}
+     */
+    public CompletableFuture<HTTPResponse> getAsync() {
+        return this.executeAsync(Method.GET);
+    }
+
+    /**
+     * Executes the request without blocking a thread while it is in flight. Dependent stages without an explicit executor run on the
+     * I/O dispatcher thread and must not block.
+     *
+     * @return the future {@link HTTPResponse}
+     */
+    public CompletableFuture<HTTPResponse> putAsync() {
+        return this.executeAsync(Method.PUT);
+    }
+
+    /**
+     * Executes the request without blocking a thread while it is in flight. Dependent stages without an explicit executor run on the
+     * I/O dispatcher thread and must not block.
+     *
+     * @return the future {@link HTTPResponse}
+     */
+    public CompletableFuture<HTTPResponse> patchAsync() {
+        return this.executeAsync(Method.PATCH);
+    }
+
+    /**
+     * Executes the request without blocking a thread while it is in flight. Dependent stages without an explicit executor run on the
+     * I/O dispatcher thread and must not block.
+     *
+     * @return the future {@link HTTPResponse}
+     */
+    public CompletableFuture<HTTPResponse> postAsync() {
+        return this.executeAsync(Method.POST);
+    }
+
+    /**
+     * Executes the request without blocking a thread while it is in flight. Dependent stages without an explicit executor run on the
+     * I/O dispatcher thread and must not block.
+     *
+     * @return the future {@link HTTPResponse}
+     */
+    public CompletableFuture<HTTPResponse> deleteAsync() {
+        return this.executeAsync(Method.DELETE);
+    }
+
+    /**
+     * Executes the request without blocking a thread while it is in flight. Dependent stages without an explicit executor run on the
+     * I/O dispatcher thread and must not block.
+     *
+     * @return the future {@link HTTPResponse}
+     */
+    public CompletableFuture<HTTPResponse> optionsAsync() {
+        return this.executeAsync(Method.OPTIONS);
+    }
+
+    /**
+     * Executes the request without blocking a thread while it is in flight. Dependent stages without an explicit executor run on the
+     * I/O dispatcher thread and must not block.
+     *
+     * @return the future {@link HTTPResponse}
+     */
+    public CompletableFuture<HTTPResponse> headAsync() {
+        return this.executeAsync(Method.HEAD);
+    }
+
     /**
      * @param callback {@link HTTPResponseCallback}
      */
     public void getAsync(final HTTPResponseCallback callback) {
-        this.getAsync(HTTPRequest.DEFAULT_EXECUTOR, callback);
+        this.getAsync(HTTPClientManager.executor(), callback);
     }
 
     /**
@@ -345,7 +629,7 @@ public final class HTTPRequest {
      * @param callback {@link HTTPResponseCallback}
      */
     public void putAsync(final HTTPResponseCallback callback) {
-        this.putAsync(HTTPRequest.DEFAULT_EXECUTOR, callback);
+        this.putAsync(HTTPClientManager.executor(), callback);
     }
 
     /**
@@ -360,7 +644,7 @@ public final class HTTPRequest {
      * @param callback {@link HTTPResponseCallback}
      */
     public void patchAsync(final HTTPResponseCallback callback) {
-        this.patchAsync(HTTPRequest.DEFAULT_EXECUTOR, callback);
+        this.patchAsync(HTTPClientManager.executor(), callback);
     }
 
     /**
@@ -375,7 +659,7 @@ public final class HTTPRequest {
      * @param callback {@link HTTPResponseCallback}
      */
     public void postAsync(final HTTPResponseCallback callback) {
-        this.postAsync(HTTPRequest.DEFAULT_EXECUTOR, callback);
+        this.postAsync(HTTPClientManager.executor(), callback);
     }
 
     /**
@@ -390,7 +674,7 @@ public final class HTTPRequest {
      * @param callback {@link HTTPResponseCallback}
      */
     public void deleteAsync(final HTTPResponseCallback callback) {
-        this.deleteAsync(HTTPRequest.DEFAULT_EXECUTOR, callback);
+        this.deleteAsync(HTTPClientManager.executor(), callback);
     }
 
     /**
@@ -405,7 +689,7 @@ public final class HTTPRequest {
      * @param callback {@link HTTPResponseCallback}
      */
     public void optionsAsync(final HTTPResponseCallback callback) {
-        this.optionsAsync(HTTPRequest.DEFAULT_EXECUTOR, callback);
+        this.optionsAsync(HTTPClientManager.executor(), callback);
     }
 
     /**
@@ -420,7 +704,7 @@ public final class HTTPRequest {
      * @param callback {@link HTTPResponseCallback}
      */
     public void headAsync(final HTTPResponseCallback callback) {
-        this.headAsync(HTTPRequest.DEFAULT_EXECUTOR, callback);
+        this.headAsync(HTTPClientManager.executor(), callback);
     }
 
     /**
@@ -432,12 +716,9 @@ public final class HTTPRequest {
     }
 
     private void executeAsync(final Executor executor, final Method method, final HTTPResponseCallback cb) {
-        final Runnable execute = () -> {
-            final HTTPResponse res;
-            try {
-                res = HTTPRequest.this.execute(method);
-            } catch(final Exception e) {
-                cb.fail(e);
+        this.executeAsync(method).whenCompleteAsync((res, e) -> {
+            if(e != null) {
+                cb.fail(e instanceof Exception ? (Exception) e : new RuntimeException(e));
                 return;
             }
             try {
@@ -446,95 +727,83 @@ public final class HTTPRequest {
             } finally {
                 res.close();
             }
-        };
-        executor.execute(execute);
+        }, executor);
     }
 
     private HTTPResponse execute(final Method method) {
-        final URI uri = this.buildURI();
-        // attempt == 0 is not a retry, attempt > 0 are retries
-        for(int attempt = 0; attempt <= this.maxRetries; attempt++) {
-            if(attempt > 0) {
-                final int wait = this.waitStrategy.milliseconds(attempt - 1);
-                if(wait > 0) {
-                    try {
-                        Thread.sleep(wait);
-                    } catch(final InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                }
-            }
-            try {
-                final HTTPResponse response = this.attempt(method, uri);
-                if(this.retryable != null) {
-                    final int statusCode = response.getStatus();
-                    if(this.retryable.retry(Optional.empty(), Optional.of(statusCode))) {
-                        response.close(); // we are not interested in the body
-                        if(attempt < this.maxRetries) {
-                            continue; // retry
-                        } else {
-                            throw new RuntimeException("status code " + statusCode);
-                        }
-                    }
-                }
-                return response;
-            } catch(final IOException e) {
-                if(this.retryable != null) {
-                    if(attempt < this.maxRetries) {
-                        continue; // retry
-                    } else {
-                        throw new RuntimeException("retry exhausted", e);
-                    }
-                } else {
-                    throw new RuntimeException(e);
-                }
-            } catch(final RuntimeException e) {
-                if(this.retryable != null) {
-                    if(attempt < this.maxRetries) {
-                        continue; // retry
-                    } else {
-                        throw new RuntimeException("retry exhausted", e);
-                    }
-                } else {
-                    throw e;
-                }
-            }
+        return this.prepare().execute(method);
+    }
+
+    CompletableFuture<HTTPResponse> executeAsync(final Method method) {
+        final PreparedRequest prepared;
+        try {
+            prepared = this.prepare();
+        } catch(final RuntimeException e) {
+            final CompletableFuture<HTTPResponse> result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+            return result;
         }
-        throw new RuntimeException("retry failed"); // should never be reached
+        return prepared.executeAsync(method);
     }
 
-    private HTTPResponse attempt(final Method method, final URI uri) throws IOException {
+    /**
+     * Freezes the current state of this request. The {@link PreparedRequest} holds the expanded URI, the headers, the request
+     * configuration and the encoded body and can be executed any number of times from many threads without rebuilding them. Later
+     * changes to this request do not affect it.
+     *
+     * @return the {@link PreparedRequest}
+     */
+    public PreparedRequest prepare() {
         // prepare request configuration
-        final Builder requestConfigBuilder = RequestConfig.custom();
+        final Builder requestConfigBuilder = RequestConfig.copy(HTTPClientManager.requestConfig());
         if(this.timeout != null) {
             requestConfigBuilder.setConnectTimeout(this.timeout);
             requestConfigBuilder.setConnectionRequestTimeout(this.timeout);
             requestConfigBuilder.setSocketTimeout(this.timeout);
         }
         requestConfigBuilder.setRedirectsEnabled(this.followRedirect);
-        final RequestConfig requestConfig = requestConfigBuilder.build();
 
-        // prepare request
-        final HttpRequestBase request = method.request(uri);
-        request.setConfig(requestConfig);
+        // prepare headers
+        final List<Header> headerList = new ArrayList<>();
         if((this.userAgent != null) && !this.userAgent.isEmpty()) {
-            request.setHeader(WSConstants.HEADER_USER_AGENT, this.userAgent);
+            headerList.add(new BasicHeader(WSConstants.HEADER_USER_AGENT, this.userAgent));
         }
         for(final Entry<String, List<String>> entry : this.headers.entrySet()) {
-            final List<String> list = entry.getValue();
-            for(final String string : list) {
-                request.addHeader(entry.getKey(), string);
+            for(final String value : entry.getValue()) {
+                headerList.add(new BasicHeader(entry.getKey(), value));
             }
         }
-        if(request instanceof HttpEntityEnclosingRequestBase) {
-            final HttpEntityEnclosingRequestBase entityBase = (HttpEntityEnclosingRequestBase) request;
-            entityBase.setEntity(new StringEntity(this.body, "UTF-8"));
+        if(this.decompress && !this.headers.containsKey(WSConstants.HEADER_ACCEPT_ENCODING)) {
+            headerList.add(new BasicHeader(WSConstants.HEADER_ACCEPT_ENCODING, "gzip,deflate"));
         }
 
-        return new HTTPResponse(DEFAULT_HTTP_CLIENT.execute(request));
+        Supplier<HttpEntity> entity = this.body;
+        if(this.requestEncoding != null) {
+            entity = Compression.compress(entity, this.requestEncoding, this.compressThreshold);
+        }
+
+        final String route = HTTPRequest.route(this.template != null ? this.template.toString() : this.url);
+        return new PreparedRequest(this.buildURI(), route, headerList.toArray(new Header[0]), requestConfigBuilder.build(), entity, this.maxRetries, this.retryable, this.waitStrategy, this.retryBudget, this.circuitBreaker, this.hedging, this.singleFlight, this.rateLimiter, this.bulkhead, this.bulkheadTag, this.cluster, this.cache, this.decompress);
+    }
+
+    /**
+     * @param template the URL template
+     * @return the path of the template without scheme, authority and query
+     */
+    static String route(final String template) {
+        final int scheme = template.indexOf("://");
+        final int start = scheme < 0 ? 0 : template.indexOf('/', scheme + 3);
+        if(start < 0) {
+            return "/";
+        }
+        final int query = template.indexOf('?', start);
+        return template.substring(start, query < 0 ? template.length() : query);
     }
 
-    private URI buildURI() {
+    URI buildURI() {
+        if(this.template != null) {
+            return this.template.expand(this.pathParams, this.queryParams);
+        }
         try {
             String u = this.url;
             for(final Entry<String, String> pathEntry : this.pathParams.entrySet()) {
@@ -590,6 +859,30 @@ public final class HTTPRequest {
             public HttpRequestBase request(final URI uri) {
                 return new HttpOptions(uri);
             }
+        };
+
+        /**
+         * @return true for methods without side effects that can safely be sent twice (GET, HEAD and OPTIONS)
+         */
+        public boolean isSafe() {
+            return (this == GET) || (this == HEAD) || (this == OPTIONS);
+        }
+    }
+
+    public enum Encoding {
+        GZIP("gzip"), DEFLATE("deflate");
+
+        private final String name;
+
+        Encoding(final String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the name used in the Content-Encoding header
+         */
+        public String getName() {
+            return this.name;
         }
     }
 
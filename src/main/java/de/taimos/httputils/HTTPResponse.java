@@ -1,15 +1,50 @@
 package de.taimos.httputils;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.ParseException;
+import org.apache.http.entity.ContentType;
 import org.apache.http.util.EntityUtils;
 
 public class HTTPResponse implements AutoCloseable {
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * default maximum number of characters of a line read by {@link #lines()} and {@link #linesPublisher()}
+     */
+    public static final int MAX_LINE_LENGTH = 1024 * 1024;
+
     private final HttpResponse response;
 
+    private volatile boolean streamed = false;
+
+    private volatile Runnable onClose;
+
     public HTTPResponse(final HttpResponse response) {
         this.response = response;
     }
@@ -40,6 +75,201 @@ public class HTTPResponse implements AutoCloseable {
         }
     }
 
+    /**
+     * Streams the body without buffering it. Responses of the <code>*Async()</code> methods are already buffered by the non-blocking
+     * client. Closing this response before the stream is read to the end discards the connection instead of reading the remaining
+     * body.
+     *
+     * @return the body as stream; empty if the response has no body
+     */
+    public InputStream getResponseAsStream() {
+        final HttpEntity entity = this.response.getEntity();
+        if (entity == null) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        try {
+            this.streamed = true;
+            return entity.getContent();
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the body as channel
+     * @see #getResponseAsStream()
+     */
+    public ReadableByteChannel getResponseAsChannel() {
+        return Channels.newChannel(this.getResponseAsStream());
+    }
+
+    /**
+     * Reads the body line by line, e.g. newline delimited JSON, without holding it in memory. Lines are decoded lazily from a fixed size
+     * buffer using the charset of the response, UTF-8 by default. Close the stream to release the connection; I/O errors are thrown as
+     * {@link UncheckedIOException}. Memory is only bounded for responses of the blocking methods; responses of the <code>*Async()</code>
+     * methods are already buffered by the non-blocking client.
+     *
+     * <pre>
+     * try (Stream&lt;String&gt; lines = response.lines()) {
+     *     lines.map(Record::parse).forEach(sink::add);
+     * }
+     * </pre>
+     *
+     * @return the lines of the body without line terminators; a line longer than {@link #MAX_LINE_LENGTH} fails the stream
+     * @see #getResponseAsStream()
+     */
+    public Stream<String> lines() {
+        return this.lines(HTTPResponse.MAX_LINE_LENGTH);
+    }
+
+    /**
+     * @param maxLineLength maximum number of characters of a line
+     * @return the lines of the body without line terminators; a longer line fails the stream with an {@link UncheckedIOException}
+     * @see #lines()
+     */
+    public Stream<String> lines(final int maxLineLength) {
+        if (maxLineLength <= 0) {
+            throw new IllegalArgumentException("maxLineLength must be > 0");
+        }
+        final BufferedReader reader = this.reader();
+        final Iterator<String> iterator = new Iterator<String>() {
+
+            private String next;
+
+            private boolean fetched;
+
+            @Override
+            public boolean hasNext() {
+                if (!this.fetched) {
+                    try {
+                        this.next = HTTPResponse.readLine(reader, maxLineLength);
+                    } catch (final IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    this.fetched = true;
+                }
+                return this.next != null;
+            }
+
+            @Override
+            public String next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                this.fetched = false;
+                return this.next;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(this::close);
+    }
+
+    /**
+     * Publishes the lines of the body to a subscriber, reading only as many lines as it requested. Reading runs on the executor of
+     * the asynchronous methods and stops while there is no demand. For responses of the blocking methods a slow subscriber slows down
+     * the server instead of filling memory; responses of the <code>*Async()</code> methods are already buffered by the non-blocking
+     * client.
+     *
+     * @return the publisher of the lines, supporting a single subscriber; a line longer than {@link #MAX_LINE_LENGTH} ends it with an
+     * error
+     * @see #lines()
+     */
+    public LinePublisher linesPublisher() {
+        return this.linesPublisher(HTTPResponse.MAX_LINE_LENGTH);
+    }
+
+    /**
+     * @param maxLineLength maximum number of characters of a line; a longer line ends the publisher with an error
+     * @return the publisher of the lines; it supports a single subscriber
+     * @see #linesPublisher()
+     */
+    public LinePublisher linesPublisher(final int maxLineLength) {
+        if (maxLineLength <= 0) {
+            throw new IllegalArgumentException("maxLineLength must be > 0");
+        }
+        return new LinePublisher(this, maxLineLength);
+    }
+
+    /**
+     * Reads a line terminated by LF, CR or CRLF.
+     *
+     * @return the line without terminator or null at the end of the stream
+     * @throws IOException if the line has more than maxLength characters
+     */
+    static String readLine(final BufferedReader reader, final int maxLength) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = reader.read()) >= 0) {
+            if (c == '\n') {
+                return line.toString();
+            }
+            if (c == '\r') {
+                reader.mark(1);
+                if (reader.read() != '\n') {
+                    reader.reset();
+                }
+                return line.toString();
+            }
+            if (line.length() == maxLength) {
+                throw new IOException("Line exceeds " + maxLength + " characters");
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    BufferedReader reader() {
+        Charset charset = StandardCharsets.UTF_8;
+        try {
+            final ContentType contentType = ContentType.get(this.response.getEntity());
+            if ((contentType != null) && (contentType.getCharset() != null)) {
+                charset = contentType.getCharset();
+            }
+        } catch (final ParseException | UnsupportedCharsetException e) {
+            // keep the default for malformed or unknown content types
+        }
+        return new BufferedReader(new InputStreamReader(this.getResponseAsStream(), charset), HTTPResponse.BUFFER_SIZE);
+    }
+
+    /**
+     * Copies the body to the given channel using a fixed size buffer, so memory usage does not depend on the size of the body.
+     *
+     * @param target the channel to write to; it is not closed
+     * @return the number of bytes transferred
+     */
+    public long transferTo(final WritableByteChannel target) {
+        final byte[] buffer = new byte[HTTPResponse.BUFFER_SIZE];
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        long total = 0;
+        try (final InputStream in = this.getResponseAsStream()) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                byteBuffer.clear().limit(read);
+                while (byteBuffer.hasRemaining()) {
+                    target.write(byteBuffer);
+                }
+                total += read;
+            }
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+        return total;
+    }
+
+    /**
+     * Writes the body to the given file; an existing file is replaced.
+     *
+     * @param target the file to write to
+     * @return the number of bytes transferred
+     * @see #transferTo(WritableByteChannel)
+     */
+    public long transferTo(final Path target) {
+        try (final FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return this.transferTo(channel);
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * @return String
      */
@@ -79,13 +309,33 @@ public class HTTPResponse implements AutoCloseable {
         return (code >= 500) && (code <= 599);
     }
 
+    /**
+     * @param hook called when this response is closed, e.g. to free a {@link Bulkhead} slot; it has to be idempotent
+     */
+    void onClose(final Runnable hook) {
+        this.onClose = hook;
+    }
+
     @Override
     public void close() {
         try {
-            this.response.getEntity().getContent().close();
+            if (this.streamed && (this.response instanceof Closeable)) {
+                // do not read the rest of a partially streamed body; a fully read body already released the connection
+                ((Closeable) this.response).close();
+                return;
+            }
+            final HttpEntity entity = this.response.getEntity();
+            if (entity != null) {
+                entity.getContent().close();
+            }
         } catch (final IOException e) {
             // if the stream can not be created it doesn't need to be closed
             // if the stream is already closed it's also fine
+        } finally {
+            final Runnable hook = this.onClose;
+            if (hook != null) {
+                hook.run();
+            }
         }
     }
 }
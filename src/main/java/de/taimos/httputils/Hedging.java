@@ -0,0 +1,247 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Hedging for safe requests (GET, HEAD and OPTIONS): if the response takes longer than the hedge delay, a second request is sent and
+ * whichever response arrives first is used. The other request is cancelled, or its response is closed so the connection returns to the
+ * pool. The delay is either fixed or the observed percentile of the response times of the route. A budget like {@link RetryBudget}
+ * caps the share of requests that are hedged so a slow backend does not receive twice the load.
+ * <p>
+ * One instance can be shared by any number of requests using {@link HTTPRequest#hedge(Hedging)}. Hedged blocking requests run on
+ * the non-blocking client and wait for its result.
+ *
+ * @author thoeger
+ */
+public final class Hedging {
+
+    private static final int REFRESH_INTERVAL = 32;
+
+    private final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<>();
+
+    private final RetryBudget budget = new RetryBudget().ratio(0.1).minRetriesPerSecond(0).maxBalance(10);
+
+    private final LongAdder hedges = new LongAdder();
+
+    private final LongAdder wins = new LongAdder();
+
+    private volatile long delay = 100;
+
+    private volatile double percentile = 0;
+
+    private volatile int minSamples = 100;
+
+    /**
+     * @param ms time to wait for a response before hedging; used until enough samples for {@link #percentile(double, int)} are
+     *           recorded (default: 100)
+     * @return this
+     */
+    public Hedging delay(final int ms) {
+        if(ms < 0) {
+            throw new IllegalArgumentException("delay must be >= 0");
+        }
+        this.delay = ms;
+        return this;
+    }
+
+    /**
+     * @param percentile hedge once the response takes longer than this percentile of the response times of the route, e.g. 95
+     * @param minSamples number of responses of a route to record before the percentile is used instead of the fixed delay
+     * @return this
+     */
+    public Hedging percentile(final double percentile, final int minSamples) {
+        if((percentile <= 0) || (percentile >= 100)) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        this.percentile = percentile;
+        this.minSamples = minSamples;
+        return this;
+    }
+
+    /**
+     * @param ratio maximum share of requests per host and route that are hedged (default: 0.1)
+     * @return this
+     */
+    public Hedging maxRate(final double ratio) {
+        this.budget.ratio(ratio);
+        return this;
+    }
+
+    /**
+     * @return the number of hedge requests sent
+     */
+    public long getHedgeCount() {
+        return this.hedges.sum();
+    }
+
+    /**
+     * @return the number of hedge requests that answered first
+     */
+    public long getWinCount() {
+        return this.wins.sum();
+    }
+
+    /**
+     * @param key  host and route of the request
+     * @param send sends the request and returns its future response
+     * @return the first successful response
+     */
+    CompletableFuture<HTTPResponse> execute(final String key, final Supplier<CompletableFuture<HTTPResponse>> send) {
+        Route route = this.routes.get(key);
+        if(route == null) {
+            final Route created = new Route();
+            route = this.routes.putIfAbsent(key, created);
+            if(route == null) {
+                route = created;
+            }
+        }
+        this.budget.deposit(key);
+        final Race race = new Race(key, route, send);
+        race.launch(false);
+        if(!race.result.isDone()) {
+            final ScheduledFuture<?> timer = HTTPClientManager.schedule(() -> race.launch(true), route.delay(), TimeUnit.MILLISECONDS);
+            race.result.whenComplete((res, e) -> timer.cancel(false));
+        }
+        return race.result;
+    }
+
+    private final class Route {
+
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        private final AtomicLong samples = new AtomicLong();
+
+        private volatile long percentileDelay = -1;
+
+        private void record(final long nanos) {
+            this.latency.record(nanos);
+            final long count = this.samples.incrementAndGet();
+            if((Hedging.this.percentile > 0) && (count >= Hedging.this.minSamples) && ((count % Hedging.REFRESH_INTERVAL) == 0)) {
+                this.percentileDelay = this.latency.getValueAtPercentile(Hedging.this.percentile) / 1000;
+            }
+        }
+
+        private long delay() {
+            final long observed = this.percentileDelay;
+            return ((Hedging.this.percentile > 0) && (observed >= 0)) ? observed : Hedging.this.delay;
+        }
+    }
+
+    /**
+     * The primary request and at most one hedge racing for the result.
+     */
+    private final class Race {
+
+        private final CompletableFuture<HTTPResponse> result = new CompletableFuture<>();
+
+        private final List<CompletableFuture<HTTPResponse>> attempts = new ArrayList<>(2);
+
+        private final String key;
+
+        private final Route route;
+
+        private final Supplier<CompletableFuture<HTTPResponse>> send;
+
+        private final long start = System.nanoTime();
+
+        private int outstanding;
+
+        private boolean hedgeable = true;
+
+        private Throwable failure;
+
+        private Race(final String key, final Route route, final Supplier<CompletableFuture<HTTPResponse>> send) {
+            this.key = key;
+            this.route = route;
+            this.send = send;
+            this.result.whenComplete((res, e) -> {
+                if(this.result.isCancelled()) {
+                    this.cancelAll(null);
+                }
+            });
+        }
+
+        private synchronized void launch(final boolean hedge) {
+            if(this.result.isDone() || (hedge && (!this.hedgeable || !Hedging.this.budget.withdraw(this.key)))) {
+                return;
+            }
+            if(hedge) {
+                this.hedgeable = false;
+                Hedging.this.hedges.increment();
+            }
+            final CompletableFuture<HTTPResponse> attempt = this.send.get();
+            this.attempts.add(attempt);
+            this.outstanding++;
+            attempt.whenComplete((response, e) -> this.completed(attempt, hedge, response, e));
+        }
+
+        private synchronized void completed(final CompletableFuture<HTTPResponse> attempt, final boolean hedge, final HTTPResponse response, final Throwable e) {
+            this.outstanding--;
+            if(e == null) {
+                if(!hedge) {
+                    this.route.record(System.nanoTime() - this.start);
+                }
+                if(this.result.isDone()) {
+                    response.close(); // lost the race, release the connection
+                    return;
+                }
+                // count before completing so callers see the counters of the race they waited for
+                if(hedge) {
+                    Hedging.this.wins.increment();
+                }
+                if(this.result.complete(response)) {
+                    this.cancelAll(attempt);
+                } else {
+                    response.close(); // cancelled by the caller meanwhile
+                }
+                return;
+            }
+            // a failed primary is not hedged, a failed hedge waits for the primary
+            this.hedgeable = false;
+            if(this.failure == null) {
+                this.failure = e;
+            }
+            if(this.outstanding == 0) {
+                this.result.completeExceptionally(this.failure);
+            }
+        }
+
+        private synchronized void cancelAll(final CompletableFuture<HTTPResponse> winner) {
+            for(final CompletableFuture<HTTPResponse> attempt : this.attempts) {
+                if(attempt != winner) {
+                    attempt.cancel(false);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,181 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.util.Timeout;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Sends the requests built by {@link PreparedRequest} over HTTP/2 using the HttpClient 5 client, which keeps one multiplexed connection
+ * per host. Requests and responses are converted from and to the HttpClient 4 types so everything above the transport stays the same.
+ *
+ * @author thoeger
+ */
+final class Http2Transport implements Closeable {
+
+    private static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+    /** connection specific headers are not allowed in HTTP/2 */
+    private static final Set<String> HOP_BY_HOP = new HashSet<>(Arrays.asList("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "host"));
+
+    private final CloseableHttpAsyncClient client;
+
+    Http2Transport(final HTTPClientConfig config) {
+        this.client = HttpAsyncClients.customHttp2()
+                .setIOReactorConfig(IOReactorConfig.custom().setIoThreadCount(config.getIoThreads()).build())
+                .disableAutomaticRetries() // retries are done by PreparedRequest
+                .build();
+        this.client.start();
+    }
+
+    /**
+     * @param request  the request to send
+     * @param callback the callback to notify
+     * @return the future to cancel the request
+     */
+    Future<SimpleHttpResponse> execute(final HttpRequestBase request, final FutureCallback<HttpResponse> callback) {
+        return this.client.execute(Http2Transport.convert(request), new org.apache.hc.core5.concurrent.FutureCallback<SimpleHttpResponse>() {
+
+            @Override
+            public void completed(final SimpleHttpResponse response) {
+                callback.completed(Http2Transport.convert(response));
+            }
+
+            @Override
+            public void failed(final Exception e) {
+                callback.failed(e);
+            }
+
+            @Override
+            public void cancelled() {
+                callback.cancelled();
+            }
+        });
+    }
+
+    /**
+     * Sends the request and blocks until the response arrives. An interrupt cancels the request.
+     *
+     * @param request the request to send
+     * @return the response
+     * @throws IOException if the request failed
+     */
+    HttpResponse execute(final HttpRequestBase request) throws IOException {
+        final Future<SimpleHttpResponse> future = this.client.execute(Http2Transport.convert(request), null);
+        try {
+            return Http2Transport.convert(future.get());
+        } catch(final InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("request interrupted");
+        } catch(final ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.client.close();
+    }
+
+    private static SimpleHttpRequest convert(final HttpRequestBase request) {
+        final SimpleHttpRequest converted = new SimpleHttpRequest(request.getMethod(), request.getURI());
+        for(final Header header : request.getAllHeaders()) {
+            if(!Http2Transport.HOP_BY_HOP.contains(header.getName().toLowerCase(Locale.ROOT))) {
+                converted.addHeader(header.getName(), header.getValue());
+            }
+        }
+        if(request instanceof HttpEntityEnclosingRequest) {
+            final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if(entity != null) {
+                if(entity.getContentEncoding() != null) {
+                    converted.addHeader(entity.getContentEncoding().getName(), entity.getContentEncoding().getValue());
+                }
+                try {
+                    converted.setBody(EntityUtils.toByteArray(entity), entity.getContentType() == null ? null : ContentType.parse(entity.getContentType().getValue()));
+                } catch(final IOException e) {
+                    throw new RuntimeException("Failed to read request body", e);
+                }
+            }
+        }
+        final RequestConfig config = request.getConfig() == null ? HTTPClientManager.requestConfig() : request.getConfig();
+        final org.apache.hc.client5.http.config.RequestConfig.Builder builder = org.apache.hc.client5.http.config.RequestConfig.custom()
+                .setRedirectsEnabled(config.isRedirectsEnabled());
+        if(config.getConnectTimeout() >= 0) {
+            builder.setConnectTimeout(Timeout.ofMilliseconds(config.getConnectTimeout()));
+        }
+        if(config.getSocketTimeout() >= 0) {
+            builder.setResponseTimeout(Timeout.ofMilliseconds(config.getSocketTimeout()));
+        }
+        if(config.getConnectionRequestTimeout() >= 0) {
+            builder.setConnectionRequestTimeout(Timeout.ofMilliseconds(config.getConnectionRequestTimeout()));
+        }
+        converted.setConfig(builder.build());
+        return converted;
+    }
+
+    private static HttpResponse convert(final SimpleHttpResponse response) {
+        final String reason = response.getReasonPhrase() != null ? response.getReasonPhrase() : EnglishReasonPhraseCatalog.INSTANCE.getReason(response.getCode(), Locale.ENGLISH);
+        final BasicHttpResponse converted = new BasicHttpResponse(Http2Transport.HTTP_2, response.getCode(), reason);
+        for(final org.apache.hc.core5.http.Header header : response.getHeaders()) {
+            converted.addHeader(header.getName(), header.getValue());
+        }
+        final byte[] body = response.getBodyBytes();
+        if(body != null) {
+            final ByteArrayEntity entity = new ByteArrayEntity(body);
+            entity.setContentType(converted.getFirstHeader("Content-Type"));
+            entity.setContentEncoding(converted.getFirstHeader("Content-Encoding"));
+            converted.setEntity(entity);
+        }
+        return converted;
+    }
+
+}
@@ -0,0 +1,125 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear histogram of latencies with microsecond resolution in the style of HdrHistogram. Every power of two is split
+ * into 64 buckets, so reported percentiles are at most 1.6% above the recorded value. Values above about 71 minutes are recorded as
+ * the maximum bucket. Recording never allocates.
+ *
+ * @author thoeger
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+
+    private static final int SUB_BUCKETS = 1 << LatencyHistogram.SUB_BUCKET_BITS;
+
+    private static final int MAX_BITS = 32;
+
+    private static final int BUCKETS = ((LatencyHistogram.MAX_BITS - LatencyHistogram.SUB_BUCKET_BITS) + 1) * LatencyHistogram.SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(LatencyHistogram.BUCKETS);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param nanos the latency to record in nanoseconds
+     */
+    public void record(final long nanos) {
+        final long micros = Math.max(0, nanos / 1000);
+        this.counts.incrementAndGet(LatencyHistogram.index(micros));
+        this.count.increment();
+        this.sum.add(micros);
+        this.max.accumulate(micros);
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    /**
+     * @return the largest recorded value in microseconds
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * @return the mean of the recorded values in microseconds
+     */
+    public double getMean() {
+        final long n = this.count.sum();
+        return n == 0 ? 0 : (double) this.sum.sum() / n;
+    }
+
+    /**
+     * @param percentile the percentile between 0 and 100, e.g. 99.9
+     * @return the value in microseconds that the given percentage of recorded values is less than or equal to
+     */
+    public long getValueAtPercentile(final double percentile) {
+        if((percentile < 0) || (percentile > 100)) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        long total = 0;
+        for(int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            total += this.counts.get(i);
+        }
+        if(total == 0) {
+            return 0;
+        }
+        final long target = Math.max(1, (long) Math.ceil((percentile / 100) * total));
+        long seen = 0;
+        for(int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            seen += this.counts.get(i);
+            if(seen >= target) {
+                return Math.min(LatencyHistogram.highestValue(i), this.max.get());
+            }
+        }
+        return this.max.get();
+    }
+
+    static int index(final long value) {
+        final int shift = Math.max(0, (63 - Long.numberOfLeadingZeros(value)) - LatencyHistogram.SUB_BUCKET_BITS);
+        return (int) Math.min((shift * LatencyHistogram.SUB_BUCKETS) + (value >>> shift), LatencyHistogram.BUCKETS - 1);
+    }
+
+    static long highestValue(final int index) {
+        if(index < (2 * LatencyHistogram.SUB_BUCKETS)) {
+            return index;
+        }
+        final int shift = (index / LatencyHistogram.SUB_BUCKETS) - 1;
+        final long mantissa = (index % LatencyHistogram.SUB_BUCKETS) + LatencyHistogram.SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+}
@@ -0,0 +1,230 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the lines of a response body with backpressure. Created by {@link HTTPResponse#linesPublisher()}. The interfaces follow
+ * the contract of <code>java.util.concurrent.Flow</code>, which is not available on Java 8, so adapting to Flow or Reactive Streams
+ * only needs to forward the calls.
+ *
+ * <pre>
+ * response.linesPublisher().subscribe(new LinePublisher.Subscriber() {
+ *     public void onSubscribe(LinePublisher.Subscription subscription) { this.subscription = subscription; subscription.request(100); }
+ *     public void onNext(String line) { process(line); if(++count % 100 == 0) subscription.request(100); }
+ *     public void onError(Throwable throwable) { log(throwable); }
+ *     public void onComplete() { done(); }
+ * });
+ * </pre>
+ *
+ * Lines are read only as requested, from a fixed size buffer, and lines longer than the maximum line length end the publisher with
+ * an error. For responses of the blocking methods memory therefore does not depend on the size of the body or the speed of the server;
+ * responses of the <code>*Async()</code> methods are already buffered in memory by the non-blocking client. Signals are delivered serially on the executor of the asynchronous methods; no thread is held while there is no demand. The
+ * response is closed after completion, error or cancellation.
+ *
+ * @author thoeger
+ */
+public final class LinePublisher {
+
+    private final HTTPResponse response;
+
+    private final int maxLineLength;
+
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    LinePublisher(final HTTPResponse response, final int maxLineLength) {
+        this.response = response;
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * @param subscriber the subscriber to publish the lines to; only the first subscriber receives lines, others receive an error
+     */
+    public void subscribe(final Subscriber subscriber) {
+        if(subscriber == null) {
+            throw new IllegalArgumentException("subscriber must not be null");
+        }
+        if(!this.subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Subscription() {
+
+                @Override
+                public void request(final long n) {
+                    //
+                }
+
+                @Override
+                public void cancel() {
+                    //
+                }
+            });
+            subscriber.onError(new IllegalStateException("the lines are already published to another subscriber"));
+            return;
+        }
+        final LineSubscription subscription = new LineSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * Receives the lines; mirrors <code>java.util.concurrent.Flow.Subscriber&lt;String&gt;</code>.
+     */
+    public interface Subscriber {
+
+        /**
+         * @param subscription the subscription to request lines from or cancel
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * @param line the next line without line terminator
+         */
+        void onNext(String line);
+
+        /**
+         * @param throwable the failure reading the body, e.g. a line longer than the maximum, or an invalid request
+         */
+        void onError(Throwable throwable);
+
+        /**
+         * Called after the last line.
+         */
+        void onComplete();
+    }
+
+    /**
+     * The demand of a subscriber; mirrors <code>java.util.concurrent.Flow.Subscription</code>.
+     */
+    public interface Subscription {
+
+        /**
+         * @param n number of additional lines to deliver; must be &gt; 0, {@link Long#MAX_VALUE} for unbounded
+         */
+        void request(long n);
+
+        /**
+         * Stops publishing and closes the response. A line being read is discarded.
+         */
+        void cancel();
+    }
+
+    private final class LineSubscription implements Subscription {
+
+        private final Subscriber subscriber;
+
+        private final AtomicLong demand = new AtomicLong();
+
+        private final AtomicInteger work = new AtomicInteger();
+
+        private volatile boolean cancelled;
+
+        private volatile Throwable invalid;
+
+        private BufferedReader reader;
+
+        private boolean done;
+
+        private LineSubscription(final Subscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(final long n) {
+            if(n <= 0) {
+                this.invalid = new IllegalArgumentException("request must be > 0");
+            } else {
+                this.demand.getAndUpdate(current -> (current + n) < 0 ? Long.MAX_VALUE : current + n);
+            }
+            this.schedule();
+        }
+
+        @Override
+        public void cancel() {
+            this.cancelled = true;
+            this.schedule();
+        }
+
+        private void schedule() {
+            if(this.work.getAndIncrement() == 0) {
+                HTTPClientManager.executor().execute(this::drain);
+            }
+        }
+
+        /**
+         * Delivers lines while there is demand; only one thread at a time runs it, so signals are serial and the reader needs no lock.
+         */
+        private void drain() {
+            int missed = 1;
+            do {
+                while(!this.done) {
+                    if(this.cancelled) {
+                        this.finish();
+                        break;
+                    }
+                    if(this.invalid != null) {
+                        this.finish();
+                        this.subscriber.onError(this.invalid);
+                        break;
+                    }
+                    if(this.demand.get() == 0) {
+                        break;
+                    }
+                    final String line;
+                    try {
+                        if(this.reader == null) {
+                            this.reader = LinePublisher.this.response.reader();
+                        }
+                        line = HTTPResponse.readLine(this.reader, LinePublisher.this.maxLineLength);
+                    } catch(final IOException | RuntimeException e) {
+                        this.finish();
+                        this.subscriber.onError(e);
+                        break;
+                    }
+                    if(line == null) {
+                        this.finish();
+                        this.subscriber.onComplete();
+                        break;
+                    }
+                    if(this.demand.get() != Long.MAX_VALUE) {
+                        this.demand.decrementAndGet();
+                    }
+                    try {
+                        this.subscriber.onNext(line);
+                    } catch(final RuntimeException e) {
+                        // a failing subscriber cancels its subscription
+                        this.finish();
+                        break;
+                    }
+                }
+                missed = this.work.addAndGet(-missed);
+            } while(missed != 0);
+        }
+
+        private void finish() {
+            this.done = true;
+            LinePublisher.this.response.close();
+        }
+    }
+
+}
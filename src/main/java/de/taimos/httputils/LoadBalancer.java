@@ -0,0 +1,91 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the instance of a {@link Cluster} to send an attempt to. Implementations have to be thread safe.
+ *
+ * @author thoeger
+ */
+@FunctionalInterface
+public interface LoadBalancer {
+
+    /**
+     * @param candidates the instances that are not ejected, without the instance of the failed attempt when retrying; never empty
+     * @return the instance to use
+     */
+    Cluster.Instance choose(List<Cluster.Instance> candidates);
+
+    /**
+     * @return a balancer cycling through the instances
+     */
+    static LoadBalancer roundRobin() {
+        final AtomicInteger next = new AtomicInteger();
+        return candidates -> candidates.get(Math.floorMod(next.getAndIncrement(), candidates.size()));
+    }
+
+    /**
+     * @return a balancer picking two random instances and using the one with fewer outstanding requests, or the faster one on a tie
+     */
+    static LoadBalancer powerOfTwoChoices() {
+        return candidates -> {
+            final int size = candidates.size();
+            if(size == 1) {
+                return candidates.get(0);
+            }
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            final int first = random.nextInt(size);
+            int second = random.nextInt(size - 1);
+            if(second >= first) {
+                second++;
+            }
+            final Cluster.Instance a = candidates.get(first);
+            final Cluster.Instance b = candidates.get(second);
+            if(a.getOutstanding() != b.getOutstanding()) {
+                return a.getOutstanding() < b.getOutstanding() ? a : b;
+            }
+            return a.getLatency() <= b.getLatency() ? a : b;
+        };
+    }
+
+    /**
+     * @return a balancer using the instance with the fewest outstanding requests; ties are broken starting at a random instance
+     */
+    static LoadBalancer leastOutstanding() {
+        return candidates -> {
+            final int size = candidates.size();
+            final int offset = ThreadLocalRandom.current().nextInt(size);
+            Cluster.Instance best = null;
+            for(int i = 0; i < size; i++) {
+                final Cluster.Instance instance = candidates.get((offset + i) % size);
+                if((best == null) || (instance.getOutstanding() < best.getOutstanding())) {
+                    best = instance;
+                }
+            }
+            return best;
+        };
+    }
+
+}
@@ -0,0 +1,135 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory {@link HTTPMetrics} keeping {@link RouteMetrics} per host and route template. Recording is lock-free and does not
+ * allocate once a route has been seen.
+ *
+ * <pre>
+ * MetricsRecorder metrics = new MetricsRecorder();
+ * WS.configure(new HTTPClientConfig().metrics(metrics));
+ * ...
+ * metrics.route("api.example.com", "/users/{id}").getLatency().getValueAtPercentile(99);
+ * </pre>
+ *
+ * @author thoeger
+ */
+public final class MetricsRecorder implements HTTPMetrics {
+
+    private final ConcurrentMap<String, ConcurrentMap<String, RouteMetrics>> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * @param host  the target host
+     * @param route the route template
+     * @return the metrics of the route or null if no request was sent to it
+     */
+    public RouteMetrics route(final String host, final String route) {
+        final ConcurrentMap<String, RouteMetrics> routes = this.hosts.get(host);
+        return routes == null ? null : routes.get(route);
+    }
+
+    /**
+     * @return the metrics of all routes
+     */
+    public Collection<RouteMetrics> routes() {
+        final List<RouteMetrics> result = new ArrayList<>();
+        for(final ConcurrentMap<String, RouteMetrics> routes : this.hosts.values()) {
+            result.addAll(routes.values());
+        }
+        return result;
+    }
+
+    /**
+     * Forget all routes.
+     */
+    public void clear() {
+        this.hosts.clear();
+    }
+
+    @Override
+    public void started(final String host, final String route) {
+        this.metrics(host, route).started();
+    }
+
+    @Override
+    public void completed(final String host, final String route, final int status, final long nanos) {
+        this.metrics(host, route).completed(status, nanos);
+    }
+
+    @Override
+    public void failed(final String host, final String route, final Exception e, final long nanos) {
+        this.metrics(host, route).failed(nanos);
+    }
+
+    @Override
+    public void retry(final String host, final String route, final int retry, final long waitMs) {
+        this.metrics(host, route).retry(waitMs);
+    }
+
+    @Override
+    public void retryBudgetExhausted(final String host, final String route) {
+        this.metrics(host, route).retryBudgetExhausted();
+    }
+
+    @Override
+    public void bulkheadFull(final String host, final String route) {
+        this.metrics(host, route).bulkheadFull();
+    }
+
+    @Override
+    public void sent(final String host, final String route, final long bytes) {
+        this.metrics(host, route).sent(bytes);
+    }
+
+    @Override
+    public void received(final String host, final String route, final long bytes) {
+        this.metrics(host, route).received(bytes);
+    }
+
+    private RouteMetrics metrics(final String host, final String route) {
+        // two plain lookups instead of a composite key or a capturing lambda keep the hot path free of allocations
+        ConcurrentMap<String, RouteMetrics> routes = this.hosts.get(host);
+        if(routes == null) {
+            final ConcurrentMap<String, RouteMetrics> created = new ConcurrentHashMap<>();
+            routes = this.hosts.putIfAbsent(host, created);
+            if(routes == null) {
+                routes = created;
+            }
+        }
+        RouteMetrics metrics = routes.get(route);
+        if(metrics == null) {
+            final RouteMetrics created = new RouteMetrics(host, route);
+            metrics = routes.putIfAbsent(route, created);
+            if(metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+}
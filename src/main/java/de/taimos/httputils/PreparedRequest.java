@@ -0,0 +1,923 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Immutable and thread-safe snapshot of an {@link HTTPRequest} created by {@link HTTPRequest#prepare()}. The URI, headers, request
+ * configuration and body entity are computed once; every execution only creates the Apache request object. Stateful entities like
+ * files are created per execution.
+ *
+ * @author thoeger
+ */
+public final class PreparedRequest {
+
+    private static final Header[] NO_HEADERS = new Header[0];
+
+    private final URI uri;
+
+    private final String host;
+
+    private final String route;
+
+    private final Header[] headers;
+
+    private final RequestConfig requestConfig;
+
+    private final Supplier<HttpEntity> entity;
+
+    /** false if the body can be sent only once, e.g. a stream; such requests are neither retried nor hedged */
+    private final boolean repeatable;
+
+    private final int maxRetries;
+
+    private final Retryable retryable;
+
+    private final WaitStrategy waitStrategy;
+
+    private final RetryBudget retryBudget;
+
+    private final CircuitBreaker circuitBreaker;
+
+    private final Hedging hedging;
+
+    private final SingleFlight singleFlight;
+
+    private final RateLimiter rateLimiter;
+
+    private final Bulkhead bulkhead;
+
+    private final String bulkheadTag;
+
+    private final String bulkheadKey;
+
+    private final Cluster cluster;
+
+    /** path and query of a cluster request below the base URLs */
+    private final URI path;
+
+    /** the request of the cluster this attempt is a copy of, null if this is not a copy */
+    private final PreparedRequest template;
+
+    /** the instance of the cluster the copy is sent to */
+    private final Cluster.Instance instance;
+
+    /** the retry budget is per cluster, not per instance */
+    private final String budgetKey;
+
+    private final HTTPCache cache;
+
+    private final boolean decompress;
+
+    PreparedRequest(final URI uri, final String route, final Header[] headers, final RequestConfig requestConfig, final Supplier<HttpEntity> entity, final int maxRetries, final Retryable retryable, final WaitStrategy waitStrategy, final RetryBudget retryBudget, final CircuitBreaker circuitBreaker, final Hedging hedging, final SingleFlight singleFlight, final RateLimiter rateLimiter, final Bulkhead bulkhead, final String bulkheadTag, final Cluster cluster, final HTTPCache cache, final boolean decompress) {
+        this.uri = cluster == null ? uri : cluster.resolve(uri);
+        this.host = this.uri.getHost() == null ? "" : this.uri.getHost();
+        this.route = route;
+        this.headers = headers;
+        this.requestConfig = requestConfig;
+        this.entity = entity;
+        this.repeatable = entity.get().isRepeatable();
+        this.maxRetries = maxRetries;
+        this.retryable = retryable;
+        this.waitStrategy = waitStrategy;
+        this.retryBudget = retryBudget;
+        this.circuitBreaker = circuitBreaker;
+        this.hedging = hedging;
+        this.singleFlight = singleFlight;
+        this.rateLimiter = rateLimiter;
+        this.bulkhead = bulkhead;
+        this.bulkheadTag = bulkheadTag;
+        this.bulkheadKey = bulkheadTag == null ? this.host : bulkheadTag;
+        this.cluster = cluster;
+        this.path = cluster == null ? null : uri;
+        this.template = null;
+        this.instance = null;
+        this.budgetKey = this.host;
+        this.cache = cache;
+        this.decompress = decompress;
+    }
+
+    /**
+     * Copies the request of a cluster to send an attempt to one instance.
+     */
+    private PreparedRequest(final PreparedRequest template, final Cluster.Instance instance) {
+        this.uri = instance.resolve(template.path);
+        this.host = this.uri.getHost();
+        this.route = template.route;
+        this.headers = template.headers;
+        this.requestConfig = template.requestConfig;
+        this.entity = template.entity;
+        this.repeatable = template.repeatable;
+        this.maxRetries = template.maxRetries;
+        this.retryable = template.retryable;
+        this.waitStrategy = template.waitStrategy;
+        this.retryBudget = template.retryBudget;
+        this.circuitBreaker = template.circuitBreaker;
+        this.hedging = template.hedging;
+        this.singleFlight = template.singleFlight;
+        this.rateLimiter = template.rateLimiter;
+        this.bulkhead = template.bulkhead;
+        this.bulkheadTag = template.bulkheadTag;
+        this.bulkheadKey = template.bulkheadTag == null ? this.host : template.bulkheadTag;
+        this.cluster = template.cluster;
+        this.path = template.path;
+        this.template = template;
+        this.instance = instance;
+        this.budgetKey = template.budgetKey;
+        this.cache = template.cache;
+        this.decompress = template.decompress;
+    }
+
+    /**
+     * @return the expanded URI
+     */
+    public URI getURI() {
+        return this.uri;
+    }
+
+    /**
+     * @return the {@link HTTPResponse}
+     */
+    public HTTPResponse get() {
+        return this.execute(HTTPRequest.Method.GET);
+    }
+
+    /**
+     * @return the {@link HTTPResponse}
+     */
+    public HTTPResponse put() {
+        return this.execute(HTTPRequest.Method.PUT);
+    }
+
+    /**
+     * @return the {@link HTTPResponse}
+     */
+    public HTTPResponse patch() {
+        return this.execute(HTTPRequest.Method.PATCH);
+    }
+
+    /**
+     * @return the {@link HTTPResponse}
+     */
+    public HTTPResponse post() {
+        return this.execute(HTTPRequest.Method.POST);
+    }
+
+    /**
+     * @return the {@link HTTPResponse}
+     */
+    public HTTPResponse delete() {
+        return this.execute(HTTPRequest.Method.DELETE);
+    }
+
+    /**
+     * @return the {@link HTTPResponse}
+     */
+    public HTTPResponse options() {
+        return this.execute(HTTPRequest.Method.OPTIONS);
+    }
+
+    /**
+     * @return the {@link HTTPResponse}
+     */
+    public HTTPResponse head() {
+        return this.execute(HTTPRequest.Method.HEAD);
+    }
+
+    /**
+     * @return the future {@link HTTPResponse}
+     * @see HTTPRequest#getAsync()
+     */
+    public CompletableFuture<HTTPResponse> getAsync() {
+        return this.executeAsync(HTTPRequest.Method.GET);
+    }
+
+    /**
+     * @return the future {@link HTTPResponse}
+     * @see HTTPRequest#putAsync()
+     */
+    public CompletableFuture<HTTPResponse> putAsync() {
+        return this.executeAsync(HTTPRequest.Method.PUT);
+    }
+
+    /**
+     * @return the future {@link HTTPResponse}
+     * @see HTTPRequest#patchAsync()
+     */
+    public CompletableFuture<HTTPResponse> patchAsync() {
+        return this.executeAsync(HTTPRequest.Method.PATCH);
+    }
+
+    /**
+     * @return the future {@link HTTPResponse}
+     * @see HTTPRequest#postAsync()
+     */
+    public CompletableFuture<HTTPResponse> postAsync() {
+        return this.executeAsync(HTTPRequest.Method.POST);
+    }
+
+    /**
+     * @return the future {@link HTTPResponse}
+     * @see HTTPRequest#deleteAsync()
+     */
+    public CompletableFuture<HTTPResponse> deleteAsync() {
+        return this.executeAsync(HTTPRequest.Method.DELETE);
+    }
+
+    /**
+     * @return the future {@link HTTPResponse}
+     * @see HTTPRequest#optionsAsync()
+     */
+    public CompletableFuture<HTTPResponse> optionsAsync() {
+        return this.executeAsync(HTTPRequest.Method.OPTIONS);
+    }
+
+    /**
+     * @return the future {@link HTTPResponse}
+     * @see HTTPRequest#headAsync()
+     */
+    public CompletableFuture<HTTPResponse> headAsync() {
+        return this.executeAsync(HTTPRequest.Method.HEAD);
+    }
+
+    HTTPResponse execute(final HTTPRequest.Method method) {
+        if((this.singleFlight != null) && method.isSafe()) {
+            return this.singleFlight.execute(this.singleFlight.key(method, this.uri.toString(), this.headers), () -> this.cached(method));
+        }
+        return this.cached(method);
+    }
+
+    private HTTPResponse cached(final HTTPRequest.Method method) {
+        if((this.cache != null) && (method == HTTPRequest.Method.GET)) {
+            return this.cache.execute(this.uri, this.headers, conditional -> this.execute(method, conditional));
+        }
+        return this.execute(method, PreparedRequest.NO_HEADERS);
+    }
+
+    private HTTPResponse execute(final HTTPRequest.Method method, final Header[] extraHeaders) {
+        if((this.hedging != null) && method.isSafe() && this.repeatable) {
+            return PreparedRequest.await(this.executeAsync(method, extraHeaders));
+        }
+        return this.send(method, extraHeaders);
+    }
+
+    private HTTPResponse send(final HTTPRequest.Method method, final Header[] extraHeaders) {
+        final RetryBudget budget = this.retryBudget();
+        if(budget != null) {
+            budget.deposit(this.budgetKey);
+        }
+        PreparedRequest target = this;
+        // attempt == 0 is not a retry, attempt > 0 are retries
+        for(int attempt = 0; attempt <= this.maxRetries; attempt++) {
+            if(attempt > 0) {
+                final int wait = this.waitStrategy.milliseconds(attempt - 1);
+                this.retrying(attempt - 1, wait);
+                try {
+                    if(wait > 0) {
+                        Thread.sleep(wait);
+                    } else if(Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                } catch(final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("retry interrupted", e);
+                }
+            }
+            RuntimeException failure;
+            try {
+                target = target.next();
+                final HTTPResponse response = target.attempt(method, extraHeaders);
+                if(!this.retryStatus(response)) {
+                    return response;
+                }
+                failure = this.retryOrFail(attempt, budget, new RuntimeException("status code " + response.getStatus()));
+            } catch(final IOException | RuntimeException e) {
+                failure = this.retryOrFail(attempt, budget, e);
+            }
+            if(failure != null) {
+                throw failure;
+            }
+        }
+        throw new RuntimeException("retry failed"); // should never be reached
+    }
+
+    CompletableFuture<HTTPResponse> executeAsync(final HTTPRequest.Method method) {
+        if((this.singleFlight != null) && method.isSafe()) {
+            return this.singleFlight.executeAsync(this.singleFlight.key(method, this.uri.toString(), this.headers), () -> this.cachedAsync(method));
+        }
+        return this.cachedAsync(method);
+    }
+
+    private CompletableFuture<HTTPResponse> cachedAsync(final HTTPRequest.Method method) {
+        if((this.cache != null) && (method == HTTPRequest.Method.GET)) {
+            return this.cache.executeAsync(this.uri, this.headers, conditional -> this.executeAsync(method, conditional));
+        }
+        return this.executeAsync(method, PreparedRequest.NO_HEADERS);
+    }
+
+    private CompletableFuture<HTTPResponse> executeAsync(final HTTPRequest.Method method, final Header[] extraHeaders) {
+        if((this.hedging != null) && method.isSafe() && this.repeatable) {
+            return this.hedging.execute(this.host + this.route, () -> this.sendAsync(method, extraHeaders));
+        }
+        return this.sendAsync(method, extraHeaders);
+    }
+
+    private CompletableFuture<HTTPResponse> sendAsync(final HTTPRequest.Method method, final Header[] extraHeaders) {
+        final CompletableFuture<HTTPResponse> result = new CompletableFuture<>();
+        if(HTTPClientManager.isVirtualThreads()) {
+            // blocking I/O and retry sleeps are cheap on a virtual thread; cancelling interrupts it to stop pending retries
+            final FutureTask<Void> task = new FutureTask<>(() -> {
+                try {
+                    final HTTPResponse response = this.send(method, extraHeaders);
+                    if(!result.complete(response)) {
+                        response.close(); // cancelled in the meantime
+                    }
+                } catch(final RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }, null);
+            result.whenComplete((res, e) -> {
+                if(result.isCancelled()) {
+                    task.cancel(true);
+                }
+            });
+            HTTPClientManager.executor().execute(task);
+            return result;
+        }
+        final RetryBudget budget = this.retryBudget();
+        if(budget != null) {
+            budget.deposit(this.budgetKey);
+        }
+        try {
+            this.attemptAsync(method, extraHeaders, 0, result);
+        } catch(final RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private void attemptAsync(final HTTPRequest.Method method, final Header[] extraHeaders, final int attempt, final CompletableFuture<HTTPResponse> result) {
+        this.next().throttleAsync(method, extraHeaders, attempt, result);
+    }
+
+    /**
+     * Takes a permit of the {@link RateLimiter} before sending the attempt. A delayed attempt is queued on the timer.
+     */
+    private void throttleAsync(final HTTPRequest.Method method, final Header[] extraHeaders, final int attempt, final CompletableFuture<HTTPResponse> result) {
+        if(this.rateLimiter != null) {
+            final long wait;
+            try {
+                wait = this.rateLimiter.reserve(this.host, this.route);
+            } catch(final RuntimeException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+            if(wait > 0) {
+                // queued on the timer instead of blocking a thread
+                final ScheduledFuture<?> queued = HTTPClientManager.schedule(() -> {
+                    if(!result.isDone()) {
+                        this.enterAsync(method, extraHeaders, attempt, result);
+                    }
+                }, wait, TimeUnit.NANOSECONDS);
+                result.whenComplete((res, e) -> {
+                    if(result.isCancelled()) {
+                        queued.cancel(false);
+                    }
+                });
+                return;
+            }
+        }
+        this.enterAsync(method, extraHeaders, attempt, result);
+    }
+
+    /**
+     * Takes a slot of the {@link Bulkhead} before sending the attempt. A queued attempt is resumed once a slot frees up.
+     */
+    private void enterAsync(final HTTPRequest.Method method, final Header[] extraHeaders, final int attempt, final CompletableFuture<HTTPResponse> result) {
+        if(this.bulkhead == null) {
+            this.sendAttemptAsync(method, extraHeaders, attempt, result);
+            return;
+        }
+        final CompletableFuture<Void> slot;
+        try {
+            slot = this.bulkhead.acquire(this.bulkheadKey);
+        } catch(final BulkheadFullException e) {
+            this.bulkheadFull();
+            result.completeExceptionally(e);
+            return;
+        }
+        if(slot.isDone()) {
+            this.sendAttemptAsync(method, extraHeaders, attempt, result);
+            return;
+        }
+        result.whenComplete((res, e) -> {
+            if(result.isCancelled()) {
+                slot.cancel(false);
+            }
+        });
+        slot.whenComplete((v, e) -> {
+            if(e != null) {
+                if(e instanceof BulkheadFullException) {
+                    this.bulkheadFull();
+                }
+                result.completeExceptionally(e);
+            } else if(result.isDone()) {
+                this.leave(); // cancelled in the meantime
+            } else {
+                HTTPClientManager.executor().execute(() -> this.sendAttemptAsync(method, extraHeaders, attempt, result));
+            }
+        });
+    }
+
+    private void sendAttemptAsync(final HTTPRequest.Method method, final Header[] extraHeaders, final int attempt, final CompletableFuture<HTTPResponse> result) {
+        final HttpRequestBase request;
+        final long permit;
+        try {
+            request = this.createRequest(method, extraHeaders);
+            permit = this.acquire();
+        } catch(final RuntimeException e) {
+            this.leave();
+            result.completeExceptionally(e);
+            return;
+        }
+        final HTTPMetrics metrics = HTTPClientManager.metrics();
+        final long start = this.started(metrics, request);
+        final Future<?> inFlight;
+        try {
+            final Http2Transport http2 = HTTPClientManager.http2();
+            final FutureCallback<HttpResponse> callback = new FutureCallback<HttpResponse>() {
+
+                @Override
+                public void completed(final HttpResponse response) {
+                    PreparedRequest.this.finished(metrics, permit, start, response, null);
+                    PreparedRequest.this.attemptCompleted(method, extraHeaders, attempt, PreparedRequest.this.response(response, metrics), null, result);
+                }
+
+                @Override
+                public void failed(final Exception e) {
+                    PreparedRequest.this.finished(metrics, permit, start, null, e);
+                    PreparedRequest.this.attemptCompleted(method, extraHeaders, attempt, null, e, result);
+                }
+
+                @Override
+                public void cancelled() {
+                    PreparedRequest.this.finished(metrics, permit, start, null, new CancellationException());
+                    result.cancel(false);
+                }
+            };
+            inFlight = http2 != null ? http2.execute(request, callback) : HTTPClientManager.asyncClient().execute(request, callback);
+        } catch(final RuntimeException e) {
+            this.finished(metrics, permit, start, null, e);
+            result.completeExceptionally(e);
+            return;
+        }
+        result.whenComplete((res, e) -> {
+            if(result.isCancelled()) {
+                inFlight.cancel(true);
+            }
+        });
+    }
+
+    private void attemptCompleted(final HTTPRequest.Method method, final Header[] extraHeaders, final int attempt, final HTTPResponse response, final Exception exception, final CompletableFuture<HTTPResponse> result) {
+        RuntimeException failure;
+        try {
+            if(exception != null) {
+                failure = this.retryOrFail(attempt, this.retryBudget(), exception);
+            } else if(!this.retryStatus(response)) {
+                if(!result.complete(response)) {
+                    response.close(); // cancelled in the meantime
+                }
+                return;
+            } else {
+                failure = this.retryOrFail(attempt, this.retryBudget(), new RuntimeException("status code " + response.getStatus()));
+            }
+        } catch(final RuntimeException e) {
+            failure = this.retryOrFail(attempt, this.retryBudget(), e);
+        }
+        if(failure != null) {
+            result.completeExceptionally(failure);
+            return;
+        }
+        final int retry = attempt + 1;
+        final int wait = this.waitStrategy.milliseconds(attempt);
+        this.retrying(attempt, wait);
+        if(wait > 0) {
+            // no thread is held while waiting; cancelling the result drops the pending retry
+            final ScheduledFuture<?> pending = HTTPClientManager.schedule(() -> {
+                if(!result.isDone()) {
+                    this.attemptAsync(method, extraHeaders, retry, result);
+                }
+            }, wait, TimeUnit.MILLISECONDS);
+            result.whenComplete((res, e) -> {
+                if(result.isCancelled()) {
+                    pending.cancel(false);
+                }
+            });
+        } else if(!result.isDone()) {
+            this.attemptAsync(method, extraHeaders, retry, result);
+        }
+    }
+
+    /**
+     * @param response the response of the attempt
+     * @return true if the status code of the response demands a retry; the response is closed in this case
+     */
+    private boolean retryStatus(final HTTPResponse response) {
+        if(this.repeatable && (this.retryable != null) && this.retryable.retry(Optional.empty(), Optional.of(response.getStatus()))) {
+            response.close(); // we are not interested in the body
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param attempt the failed attempt
+     * @param budget  the {@link RetryBudget} to withdraw a retry from or null
+     * @param e       the cause of the failure
+     * @return the exception to fail with or null if the request should be retried
+     */
+    private RuntimeException retryOrFail(final int attempt, final RetryBudget budget, final Exception e) {
+        if((e instanceof CircuitOpenException) || (e instanceof RateLimitException) || (e instanceof BulkheadFullException)) {
+            return (RuntimeException) e; // fail fast
+        }
+        if((this.retryable == null) || !this.repeatable) {
+            return e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+        }
+        if(attempt >= this.maxRetries) {
+            return new RuntimeException("retry exhausted", e);
+        }
+        if((budget != null) && !budget.withdraw(this.budgetKey)) {
+            final HTTPMetrics metrics = HTTPClientManager.metrics();
+            if(metrics != null) {
+                metrics.retryBudgetExhausted(this.host, this.route);
+            }
+            return new RuntimeException("retry budget exhausted", e);
+        }
+        return null; // retry
+    }
+
+    private RetryBudget retryBudget() {
+        return this.retryBudget != null ? this.retryBudget : HTTPClientManager.retryBudget();
+    }
+
+    private HTTPResponse attempt(final HTTPRequest.Method method, final Header[] extraHeaders) throws IOException {
+        if(this.rateLimiter != null) {
+            final long wait = this.rateLimiter.reserve(this.host, this.route);
+            if(wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch(final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("request interrupted", e);
+                }
+            }
+        }
+        this.enter();
+        final HttpRequestBase request;
+        final long permit;
+        try {
+            request = this.createRequest(method, extraHeaders);
+            permit = this.acquire();
+        } catch(final RuntimeException e) {
+            this.leave();
+            throw e;
+        }
+        final HTTPMetrics metrics = HTTPClientManager.metrics();
+        final long start = this.started(metrics, request);
+        final HttpResponse response;
+        try {
+            final Http2Transport http2 = HTTPClientManager.http2();
+            response = http2 != null ? http2.execute(request) : HTTPClientManager.client().execute(request);
+        } catch(final IOException | RuntimeException e) {
+            this.finished(metrics, permit, start, null, e);
+            throw e;
+        }
+        this.finished(metrics, permit, start, response, null);
+        return this.response(response, metrics);
+    }
+
+    /**
+     * @param response the raw response
+     * @param metrics  the metrics to report the received bytes to or null
+     * @return the decoded response
+     */
+    private HTTPResponse response(final HttpResponse response, final HTTPMetrics metrics) {
+        final HttpEntity entity = response.getEntity();
+        final HttpEntity slot = entity;
+        if((metrics != null) && (entity != null)) {
+            if(entity.getContentLength() >= 0) {
+                metrics.received(this.host, this.route, entity.getContentLength());
+            } else {
+                response.setEntity(new ReceivedEntity(entity, metrics));
+            }
+        }
+        if(this.decompress) {
+            Compression.decode(response);
+        }
+        final HTTPResponse result = new HTTPResponse(response);
+        if(slot instanceof SlotEntity) {
+            result.onClose(((SlotEntity) slot)::release);
+        }
+        return result;
+    }
+
+    /**
+     * @return the permit of the {@link CircuitBreaker} or 0 if there is none
+     * @throws CircuitOpenException if the circuit of the host is open
+     */
+    private long acquire() {
+        return this.circuitBreaker == null ? 0 : this.circuitBreaker.acquire(this.host);
+    }
+
+    /**
+     * @return the request to send the next attempt with: this one, or for a {@link Cluster} a copy for an instance picked by its
+     * {@link LoadBalancer}, avoiding the instance of this copy
+     */
+    private PreparedRequest next() {
+        if(this.cluster == null) {
+            return this;
+        }
+        final PreparedRequest source = this.template == null ? this : this.template;
+        return new PreparedRequest(source, this.cluster.choose(this.instance));
+    }
+
+    /**
+     * Waits for a slot of the {@link Bulkhead} if there is one.
+     *
+     * @throws BulkheadFullException if the partition is saturated
+     */
+    private void enter() {
+        if(this.bulkhead == null) {
+            return;
+        }
+        CompletableFuture<Void> slot = null;
+        try {
+            slot = this.bulkhead.acquire(this.bulkheadKey);
+            PreparedRequest.await(slot);
+        } catch(final RuntimeException e) {
+            if(e instanceof BulkheadFullException) {
+                this.bulkheadFull();
+            } else if((slot != null) && slot.isDone() && !slot.isCompletedExceptionally()) {
+                this.leave(); // interrupted after the slot was handed over
+            }
+            throw e;
+        }
+    }
+
+    private void leave() {
+        if(this.bulkhead != null) {
+            this.bulkhead.release(this.bulkheadKey);
+        }
+    }
+
+    private void bulkheadFull() {
+        final HTTPMetrics metrics = HTTPClientManager.metrics();
+        if(metrics != null) {
+            metrics.bulkheadFull(this.host, this.route);
+        }
+    }
+
+    /**
+     * @param metrics the metrics to report to or null
+     * @return the start time of the attempt
+     */
+    private long started(final HTTPMetrics metrics, final HttpRequestBase request) {
+        if(this.instance != null) {
+            this.instance.started();
+        }
+        if(metrics != null) {
+            metrics.started(this.host, this.route);
+            if(request instanceof HttpEntityEnclosingRequestBase) {
+                final HttpEntity body = ((HttpEntityEnclosingRequestBase) request).getEntity();
+                if((body != null) && (body.getContentLength() >= 0)) {
+                    metrics.sent(this.host, this.route, body.getContentLength());
+                }
+            }
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Reports the outcome of an attempt to the metrics and the circuit breaker.
+     *
+     * @param response the response or null if the attempt failed
+     * @param e        the failure or null
+     */
+    private void finished(final HTTPMetrics metrics, final long permit, final long start, final HttpResponse response, final Exception e) {
+        final long nanos = System.nanoTime() - start;
+        final int status = response == null ? 0 : response.getStatusLine().getStatusCode();
+        if(metrics != null) {
+            if(response != null) {
+                metrics.completed(this.host, this.route, status, nanos);
+            } else {
+                metrics.failed(this.host, this.route, e, nanos);
+            }
+        }
+        if(this.circuitBreaker != null) {
+            this.circuitBreaker.release(this.host, permit, this.retryable, e, status, nanos);
+        }
+        if(this.instance != null) {
+            this.instance.finished(this.retryable, e, status, nanos);
+        }
+        final HttpEntity entity = response == null ? null : response.getEntity();
+        if((this.bulkhead != null) && (entity != null) && entity.isStreaming()) {
+            // the connection stays leased until the body is read or the response is closed
+            response.setEntity(new SlotEntity(entity));
+        } else {
+            this.leave();
+        }
+    }
+
+    private void retrying(final int retry, final int wait) {
+        final HTTPMetrics metrics = HTTPClientManager.metrics();
+        if(metrics != null) {
+            metrics.retry(this.host, this.route, retry, Math.max(0, wait));
+        }
+    }
+
+    HttpRequestBase createRequest(final HTTPRequest.Method method) {
+        return this.createRequest(method, PreparedRequest.NO_HEADERS);
+    }
+
+    /**
+     * Blocks until the future completes. An interrupt cancels the future.
+     *
+     * @param future the future to wait for
+     * @return the result
+     */
+    static <T> T await(final CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch(final InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("request interrupted", e);
+        } catch(final ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        }
+    }
+
+    private HttpRequestBase createRequest(final HTTPRequest.Method method, final Header[] extraHeaders) {
+        final HttpRequestBase request = method.request(this.uri);
+        request.setConfig(this.requestConfig);
+        request.setHeaders(this.headers);
+        for(final Header header : extraHeaders) {
+            request.setHeader(header);
+        }
+        if(request instanceof HttpEntityEnclosingRequestBase) {
+            ((HttpEntityEnclosingRequestBase) request).setEntity(this.entity.get());
+        }
+        return request;
+    }
+
+    /**
+     * Counts the bytes of a response body of unknown length and reports them once it is read completely or closed.
+     */
+    private final class ReceivedEntity extends HttpEntityWrapper {
+
+        private final HTTPMetrics metrics;
+
+        private ReceivedEntity(final HttpEntity wrapped, final HTTPMetrics metrics) {
+            super(wrapped);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(this.wrappedEntity.getContent()) {
+
+                private long bytes;
+
+                private boolean reported;
+
+                @Override
+                public int read() throws IOException {
+                    final int b = super.read();
+                    if(b >= 0) {
+                        this.bytes++;
+                    } else {
+                        this.report();
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len) throws IOException {
+                    final int read = super.read(b, off, len);
+                    if(read > 0) {
+                        this.bytes += read;
+                    } else if(read < 0) {
+                        this.report();
+                    }
+                    return read;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    this.report();
+                    super.close();
+                }
+
+                private void report() {
+                    if(!this.reported) {
+                        this.reported = true;
+                        ReceivedEntity.this.metrics.received(PreparedRequest.this.host, PreparedRequest.this.route, this.bytes);
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Holds the slot of the {@link Bulkhead} until the body is read to the end or closed.
+     */
+    private final class SlotEntity extends HttpEntityWrapper {
+
+        private final AtomicBoolean held = new AtomicBoolean(true);
+
+        private SlotEntity(final HttpEntity wrapped) {
+            super(wrapped);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(this.wrappedEntity.getContent()) {
+
+                @Override
+                public int read() throws IOException {
+                    final int b = super.read();
+                    if(b < 0) {
+                        SlotEntity.this.release();
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len) throws IOException {
+                    final int read = super.read(b, off, len);
+                    if(read < 0) {
+                        SlotEntity.this.release();
+                    }
+                    return read;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        SlotEntity.this.release();
+                    }
+                }
+            };
+        }
+
+        private void release() {
+            if(this.held.compareAndSet(true, false)) {
+                PreparedRequest.this.leave();
+            }
+        }
+    }
+
+}
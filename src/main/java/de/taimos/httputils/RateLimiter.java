@@ -0,0 +1,150 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free client side rate limiter per host or per route. Permits are spread evenly at the configured rate with an optional burst
+ * (generic cell rate algorithm, a smooth token bucket). Every attempt including retries takes a permit before it is sent. Blocking
+ * requests sleep until their permit is due; asynchronous requests are queued on a timer without holding a thread. If the permit is
+ * not due within the maximum wait the request fails with a {@link RateLimitException}.
+ * <p>
+ * One instance can be shared by any number of requests using {@link HTTPRequest#rateLimit(RateLimiter)}.
+ *
+ * @author thoeger
+ */
+public final class RateLimiter {
+
+    private final ConcurrentMap<String, AtomicLong> arrivals = new ConcurrentHashMap<>();
+
+    private final LongAdder delayed = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private final long interval;
+
+    private volatile long tolerance;
+
+    private volatile long maxWait = TimeUnit.SECONDS.toNanos(5);
+
+    private volatile boolean perRoute = false;
+
+    /**
+     * @param permitsPerSecond the sustained request rate
+     */
+    public RateLimiter(final double permitsPerSecond) {
+        if(permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("permitsPerSecond must be > 0");
+        }
+        this.interval = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+    }
+
+    /**
+     * @param permits number of requests that may be sent at once after a quiet period (default: 1)
+     * @return this
+     */
+    public RateLimiter burst(final int permits) {
+        if(permits <= 0) {
+            throw new IllegalArgumentException("burst must be > 0");
+        }
+        this.tolerance = this.interval * (permits - 1);
+        return this;
+    }
+
+    /**
+     * @param ms maximum time to wait for a permit; 0 fails immediately if no permit is available (default: 5000)
+     * @return this
+     */
+    public RateLimiter maxWait(final int ms) {
+        if(ms < 0) {
+            throw new IllegalArgumentException("maxWait must be >= 0");
+        }
+        this.maxWait = TimeUnit.MILLISECONDS.toNanos(ms);
+        return this;
+    }
+
+    /**
+     * @param enabled <code>true</code> to limit every route template of a host separately (default: false, one limit per host)
+     * @return this
+     */
+    public RateLimiter perRoute(final boolean enabled) {
+        this.perRoute = enabled;
+        return this;
+    }
+
+    /**
+     * @return the number of requests that waited for a permit
+     */
+    public long getDelayedCount() {
+        return this.delayed.sum();
+    }
+
+    /**
+     * @return the number of requests that failed with a {@link RateLimitException}
+     */
+    public long getRejectedCount() {
+        return this.rejected.sum();
+    }
+
+    /**
+     * Reserves the next permit.
+     *
+     * @param host  the target host
+     * @param route the route template
+     * @return nanoseconds to wait until the permit is due
+     * @throws RateLimitException if the permit is not due within the maximum wait
+     */
+    long reserve(final String host, final String route) {
+        final String key = this.perRoute ? (host + route) : host;
+        AtomicLong arrival = this.arrivals.get(key);
+        if(arrival == null) {
+            final AtomicLong created = new AtomicLong(Long.MIN_VALUE);
+            arrival = this.arrivals.putIfAbsent(key, created);
+            if(arrival == null) {
+                arrival = created;
+            }
+        }
+        final long now = System.nanoTime();
+        while(true) {
+            // the theoretical arrival time of the next request
+            final long current = arrival.get();
+            final long tat = (current == Long.MIN_VALUE) || ((current - now) < 0) ? now : current;
+            final long wait = (tat - this.tolerance) - now;
+            if(wait > this.maxWait) {
+                this.rejected.increment();
+                throw new RateLimitException(key);
+            }
+            if(arrival.compareAndSet(current, tat + this.interval)) {
+                if(wait > 0) {
+                    this.delayed.increment();
+                    return wait;
+                }
+                return 0;
+            }
+        }
+    }
+
+}
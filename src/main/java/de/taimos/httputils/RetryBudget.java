@@ -0,0 +1,181 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free token bucket per target host limiting retries to a share of the requests. Every request deposits <code>ratio</code>
+ * tokens, every retry withdraws one; a small reserve of <code>minRetriesPerSecond</code> tokens refills over time so hosts with little
+ * traffic can still retry. When the bucket is empty retries are skipped and the request fails with its last error, so a failing
+ * service sees at most <code>1 + ratio</code> times its normal load instead of <code>1 + maxRetries</code> times.
+ * <p>
+ * Set it for all requests using {@link HTTPClientConfig#retryBudget(RetryBudget)} or per request using
+ * {@link HTTPRequest#retryBudget(RetryBudget)}.
+ *
+ * @author thoeger
+ */
+public final class RetryBudget {
+
+    private static final long TOKEN = 1000;
+
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    private final LongAdder exhausted = new LongAdder();
+
+    private volatile long deposit = RetryBudget.TOKEN / 5;
+
+    private volatile long refillPerSecond = 10 * RetryBudget.TOKEN;
+
+    private volatile long maxBalance = 100 * RetryBudget.TOKEN;
+
+    /**
+     * @param ratio retries allowed per request, e.g. 0.2 for one retry per five requests (default: 0.2)
+     * @return this
+     */
+    public RetryBudget ratio(final double ratio) {
+        if((ratio < 0) || (ratio > 1)) {
+            throw new IllegalArgumentException("ratio must be between 0 and 1");
+        }
+        this.deposit = Math.round(ratio * RetryBudget.TOKEN);
+        return this;
+    }
+
+    /**
+     * @param retries retries per second allowed per host regardless of the ratio (default: 10)
+     * @return this
+     */
+    public RetryBudget minRetriesPerSecond(final int retries) {
+        if(retries < 0) {
+            throw new IllegalArgumentException("minRetriesPerSecond must be >= 0");
+        }
+        this.refillPerSecond = retries * RetryBudget.TOKEN;
+        return this;
+    }
+
+    /**
+     * @param retries maximum number of retries that can be saved up per host (default: 100)
+     * @return this
+     */
+    public RetryBudget maxBalance(final int retries) {
+        if(retries <= 0) {
+            throw new IllegalArgumentException("maxBalance must be > 0");
+        }
+        this.maxBalance = retries * RetryBudget.TOKEN;
+        return this;
+    }
+
+    /**
+     * @param host the target host
+     * @return the number of retries currently available for the host
+     */
+    public double getBalance(final String host) {
+        return (double) this.bucket(host).refill(System.nanoTime()) / RetryBudget.TOKEN;
+    }
+
+    /**
+     * @return the number of retries skipped because the budget was spent
+     */
+    public long getExhaustedCount() {
+        return this.exhausted.sum();
+    }
+
+    /**
+     * @param host the target host of a new request
+     */
+    void deposit(final String host) {
+        this.bucket(host).add(this.deposit);
+    }
+
+    /**
+     * @param host the target host
+     * @return true if the retry may be sent
+     */
+    boolean withdraw(final String host) {
+        final Bucket bucket = this.bucket(host);
+        bucket.refill(System.nanoTime());
+        final AtomicLong balance = bucket.balance;
+        for(long current = balance.get(); current >= RetryBudget.TOKEN; current = balance.get()) {
+            if(balance.compareAndSet(current, current - RetryBudget.TOKEN)) {
+                return true;
+            }
+        }
+        this.exhausted.increment();
+        return false;
+    }
+
+    private Bucket bucket(final String host) {
+        Bucket bucket = this.buckets.get(host);
+        if(bucket == null) {
+            final Bucket created = new Bucket(this.refillPerSecond);
+            bucket = this.buckets.putIfAbsent(host, created);
+            if(bucket == null) {
+                bucket = created;
+            }
+        }
+        return bucket;
+    }
+
+    private final class Bucket {
+
+        private final AtomicLong balance;
+
+        private final AtomicLong lastRefill = new AtomicLong(System.nanoTime());
+
+        private Bucket(final long initial) {
+            this.balance = new AtomicLong(Math.min(initial, RetryBudget.this.maxBalance));
+        }
+
+        private void add(final long tokens) {
+            if(tokens <= 0) {
+                return;
+            }
+            final long max = RetryBudget.this.maxBalance;
+            long current;
+            do {
+                current = this.balance.get();
+                if(current >= max) {
+                    return;
+                }
+            } while(!this.balance.compareAndSet(current, Math.min(max, current + tokens)));
+        }
+
+        /**
+         * Adds the reserve for the time since the last refill; only one thread wins each refill.
+         *
+         * @return the balance
+         */
+        private long refill(final long now) {
+            final long last = this.lastRefill.get();
+            final long elapsed = Math.min(now - last, TimeUnit.HOURS.toNanos(1)); // avoids overflow, the bucket is full anyway
+            final long tokens = (RetryBudget.this.refillPerSecond * elapsed) / TimeUnit.SECONDS.toNanos(1);
+            if((tokens > 0) && this.lastRefill.compareAndSet(last, now)) {
+                this.add(tokens);
+            }
+            return this.balance.get();
+        }
+    }
+
+}
@@ -0,0 +1,196 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of one host and route template collected by a {@link MetricsRecorder}. All values are live and updated concurrently.
+ *
+ * @author thoeger
+ */
+public final class RouteMetrics {
+
+    private static final int MAX_STATUS = 599;
+
+    private final String host;
+
+    private final String route;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private final AtomicLongArray statusCounts = new AtomicLongArray(RouteMetrics.MAX_STATUS + 1);
+
+    private final LongAdder failures = new LongAdder();
+
+    private final LongAdder retries = new LongAdder();
+
+    private final LongAdder retryWait = new LongAdder();
+
+    private final LongAdder retryBudgetExhausted = new LongAdder();
+
+    private final LongAdder bulkheadFull = new LongAdder();
+
+    private final LongAdder bytesSent = new LongAdder();
+
+    private final LongAdder bytesReceived = new LongAdder();
+
+    private final LongAdder inFlight = new LongAdder();
+
+    RouteMetrics(final String host, final String route) {
+        this.host = host;
+        this.route = route;
+    }
+
+    /**
+     * @return the target host
+     */
+    public String getHost() {
+        return this.host;
+    }
+
+    /**
+     * @return the route template
+     */
+    public String getRoute() {
+        return this.route;
+    }
+
+    /**
+     * @return the histogram of the time until the response headers arrived, including failed attempts
+     */
+    public LatencyHistogram getLatency() {
+        return this.latency;
+    }
+
+    /**
+     * @param status the status code
+     * @return the number of responses with this status code
+     */
+    public long getStatusCount(final int status) {
+        if((status < 0) || (status > RouteMetrics.MAX_STATUS)) {
+            return this.statusCounts.get(0);
+        }
+        return this.statusCounts.get(status);
+    }
+
+    /**
+     * @return the number of attempts that failed without a response
+     */
+    public long getFailureCount() {
+        return this.failures.sum();
+    }
+
+    /**
+     * @return the number of retries
+     */
+    public long getRetryCount() {
+        return this.retries.sum();
+    }
+
+    /**
+     * @return the total time in ms spent waiting before retries
+     */
+    public long getRetryWaitMillis() {
+        return this.retryWait.sum();
+    }
+
+    /**
+     * @return the number of retries skipped because the {@link RetryBudget} was spent
+     */
+    public long getRetryBudgetExhaustedCount() {
+        return this.retryBudgetExhausted.sum();
+    }
+
+    /**
+     * @return the number of attempts rejected by a saturated {@link Bulkhead}
+     */
+    public long getBulkheadFullCount() {
+        return this.bulkheadFull.sum();
+    }
+
+    /**
+     * @return the number of request body bytes sent
+     */
+    public long getBytesSent() {
+        return this.bytesSent.sum();
+    }
+
+    /**
+     * @return the number of response body bytes received as transferred, i.e. before decompression
+     */
+    public long getBytesReceived() {
+        return this.bytesReceived.sum();
+    }
+
+    /**
+     * @return the number of attempts currently waiting for a response
+     */
+    public long getInFlight() {
+        return this.inFlight.sum();
+    }
+
+    void started() {
+        this.inFlight.increment();
+    }
+
+    void completed(final int status, final long nanos) {
+        this.inFlight.decrement();
+        this.latency.record(nanos);
+        this.statusCounts.incrementAndGet(((status < 0) || (status > RouteMetrics.MAX_STATUS)) ? 0 : status);
+    }
+
+    void failed(final long nanos) {
+        this.inFlight.decrement();
+        this.latency.record(nanos);
+        this.failures.increment();
+    }
+
+    void retry(final long waitMs) {
+        this.retries.increment();
+        this.retryWait.add(waitMs);
+    }
+
+    void retryBudgetExhausted() {
+        this.retryBudgetExhausted.increment();
+    }
+
+    void bulkheadFull() {
+        this.bulkheadFull.increment();
+    }
+
+    void sent(final long bytes) {
+        this.bytesSent.add(bytes);
+    }
+
+    void received(final long bytes) {
+        this.bytesReceived.add(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return this.host + this.route + " count=" + this.latency.getCount() + " p50=" + this.latency.getValueAtPercentile(50) + "us p99="
+                + this.latency.getValueAtPercentile(99) + "us max=" + this.latency.getMax() + "us failures=" + this.getFailureCount()
+                + " retries=" + this.getRetryCount() + " bulkheadFull=" + this.getBulkheadFullCount() + " inFlight=" + this.getInFlight();
+    }
+
+}
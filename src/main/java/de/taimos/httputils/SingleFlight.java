@@ -0,0 +1,210 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical concurrent GET, HEAD and OPTIONS requests into one network call. Requests are identical if method, expanded URI,
+ * <code>Authorization</code> and <code>Cookie</code> headers and the selected headers match, so callers with different credentials
+ * never share a response. The first request sends the call and buffers the response; requests arriving while it is in flight wait
+ * for it. Every caller gets its own copy of the response, so bodies can be read and closed independently. Only use it for responses
+ * that fit into memory.
+ * <p>
+ * One instance can be shared by any number of requests using {@link HTTPRequest#coalesce(SingleFlight)}.
+ *
+ * @author thoeger
+ */
+public final class SingleFlight {
+
+    /**
+     * headers always part of the key
+     */
+    private static final String[] CREDENTIALS = {WSConstants.HEADER_AUTHORIZATION, WSConstants.HEADER_COOKIE};
+
+    private final ConcurrentMap<String, CompletableFuture<Shared>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder calls = new LongAdder();
+
+    private final LongAdder coalesced = new LongAdder();
+
+    private volatile String[] headers = new String[0];
+
+    /**
+     * @param names additional headers that are part of the key, e.g. <code>Accept</code>, so requests differing in them are not
+     *              coalesced; <code>Authorization</code> and <code>Cookie</code> are always part of it (default: none)
+     * @return this
+     */
+    public SingleFlight headers(final String... names) {
+        this.headers = names.clone();
+        return this;
+    }
+
+    /**
+     * @return the number of network calls sent
+     */
+    public long getCallCount() {
+        return this.calls.sum();
+    }
+
+    /**
+     * @return the number of requests served by a call of another request
+     */
+    public long getCoalescedCount() {
+        return this.coalesced.sum();
+    }
+
+    /**
+     * @param method  the request method
+     * @param uri     the expanded URI
+     * @param request the headers of the request
+     * @return the key identical requests share
+     */
+    String key(final HTTPRequest.Method method, final String uri, final Header[] request) {
+        final StringBuilder key = new StringBuilder(method.name()).append(' ').append(uri);
+        SingleFlight.append(key, SingleFlight.CREDENTIALS, request);
+        SingleFlight.append(key, this.headers, request);
+        return key.toString();
+    }
+
+    private static void append(final StringBuilder key, final String[] names, final Header[] request) {
+        for(final String name : names) {
+            key.append('\n').append(name).append(':');
+            for(final Header header : request) {
+                if(header.getName().equalsIgnoreCase(name)) {
+                    key.append(header.getValue()).append(',');
+                }
+            }
+        }
+    }
+
+    HTTPResponse execute(final String key, final Supplier<HTTPResponse> call) {
+        final CompletableFuture<Shared> created = new CompletableFuture<>();
+        final CompletableFuture<Shared> existing = this.inFlight.putIfAbsent(key, created);
+        if(existing != null) {
+            this.coalesced.increment();
+            // await a dependent future, so an interrupted follower cancels only its own wait and not the shared call
+            return PreparedRequest.await(existing.thenApply(Function.identity())).toResponse();
+        }
+        this.calls.increment();
+        final Shared shared;
+        try {
+            shared = Shared.of(call.get());
+        } catch(final RuntimeException e) {
+            this.inFlight.remove(key, created);
+            created.completeExceptionally(e);
+            throw e;
+        }
+        this.inFlight.remove(key, created);
+        created.complete(shared);
+        return shared.toResponse();
+    }
+
+    CompletableFuture<HTTPResponse> executeAsync(final String key, final Supplier<CompletableFuture<HTTPResponse>> call) {
+        final CompletableFuture<Shared> created = new CompletableFuture<>();
+        final CompletableFuture<Shared> existing = this.inFlight.putIfAbsent(key, created);
+        if(existing != null) {
+            this.coalesced.increment();
+        } else {
+            this.calls.increment();
+            call.get().whenComplete((response, e) -> {
+                this.inFlight.remove(key, created);
+                if(e != null) {
+                    created.completeExceptionally(e);
+                    return;
+                }
+                try {
+                    created.complete(Shared.of(response));
+                } catch(final RuntimeException ex) {
+                    created.completeExceptionally(ex);
+                }
+            });
+        }
+        // thenApply would wrap exceptions in a CompletionException
+        final CompletableFuture<HTTPResponse> result = new CompletableFuture<>();
+        (existing != null ? existing : created).whenComplete((shared, e) -> {
+            if(e != null) {
+                result.completeExceptionally(e);
+            } else {
+                result.complete(shared.toResponse());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * A buffered response handed out as independent copies.
+     */
+    private static final class Shared {
+
+        private final int status;
+
+        private final String reason;
+
+        private final Header[] headers;
+
+        private final Header contentType;
+
+        private final byte[] body;
+
+        private Shared(final HttpResponse response, final byte[] body) {
+            this.status = response.getStatusLine().getStatusCode();
+            this.reason = response.getStatusLine().getReasonPhrase();
+            this.headers = response.getAllHeaders();
+            this.contentType = response.getEntity() == null ? null : response.getEntity().getContentType();
+            this.body = body;
+        }
+
+        private static Shared of(final HTTPResponse response) {
+            try (final HTTPResponse r = response) {
+                final HttpResponse raw = r.getResponse();
+                return new Shared(raw, raw.getEntity() == null ? null : EntityUtils.toByteArray(raw.getEntity()));
+            } catch(final IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private HTTPResponse toResponse() {
+            final BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, this.status, this.reason);
+            response.setHeaders(this.headers);
+            if(this.body != null) {
+                final ByteArrayEntity entity = new ByteArrayEntity(this.body);
+                entity.setContentType(this.contentType);
+                response.setEntity(entity);
+            }
+            return new HTTPResponse(response);
+        }
+    }
+
+}
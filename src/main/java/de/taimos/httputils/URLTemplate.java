@@ -0,0 +1,240 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * URL with <code>{name}</code> placeholders that is parsed once and can be expanded any number of times from many threads. Values
+ * are percent-encoded for the part of the URL they are placed in, so a path value never introduces a new segment and a query value
+ * never introduces a new parameter. Create it using {@link WS#template(String)} and use it with {@link WS#url(URLTemplate)}.
+ *
+ * @author thoeger
+ */
+public final class URLTemplate {
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private static final boolean[] PATH_SAFE = URLTemplate.safe("-._~!$&'()*+,;=:@");
+
+    private static final boolean[] QUERY_SAFE = URLTemplate.safe("-._~!$'()*,;:@/?");
+
+    private final String template;
+
+    /**
+     * literal parts; literals[i] precedes names[i], the last literal follows the last placeholder
+     */
+    private final String[] literals;
+
+    private final String[] names;
+
+    /**
+     * true if the placeholder is part of the query string
+     */
+    private final boolean[] query;
+
+    private final boolean hasQuery;
+
+    private final int literalLength;
+
+    private final Map<List<String>, URI> cache;
+
+    private URLTemplate(final URLTemplate other, final int cacheSize) {
+        this.template = other.template;
+        this.literals = other.literals;
+        this.names = other.names;
+        this.query = other.query;
+        this.hasQuery = other.hasQuery;
+        this.literalLength = other.literalLength;
+        this.cache = cacheSize > 0 ? Collections.synchronizedMap(new LinkedHashMap<List<String>, URI>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Entry<List<String>, URI> eldest) {
+                return this.size() > cacheSize;
+            }
+        }) : null;
+    }
+
+    URLTemplate(final String template) {
+        if(template == null) {
+            throw new IllegalArgumentException("template must not be null");
+        }
+        this.template = template;
+        final List<String> literalList = new ArrayList<>();
+        final List<String> nameList = new ArrayList<>();
+        final List<Boolean> queryList = new ArrayList<>();
+        boolean inQuery = false;
+        int length = 0;
+        int start = 0;
+        int open = template.indexOf('{');
+        while(open >= 0) {
+            final int close = template.indexOf('}', open);
+            if(close < 0) {
+                throw new IllegalArgumentException("Unclosed placeholder in " + template);
+            }
+            final String literal = template.substring(start, open);
+            inQuery |= literal.indexOf('?') >= 0;
+            literalList.add(literal);
+            length += literal.length();
+            nameList.add(template.substring(open + 1, close));
+            queryList.add(inQuery);
+            start = close + 1;
+            open = template.indexOf('{', start);
+        }
+        final String tail = template.substring(start);
+        literalList.add(tail);
+        length += tail.length();
+
+        this.literals = literalList.toArray(new String[0]);
+        this.names = nameList.toArray(new String[0]);
+        this.query = new boolean[this.names.length];
+        for(int i = 0; i < this.query.length; i++) {
+            this.query[i] = queryList.get(i);
+        }
+        this.hasQuery = inQuery || (tail.indexOf('?') >= 0);
+        this.literalLength = length;
+        this.cache = null;
+    }
+
+    /**
+     * Cache expanded URIs of the most recently used parameter combinations. Expansions with query parameters are not cached.
+     *
+     * @param maxEntries the maximum number of cached URIs
+     * @return a new template sharing the parsed form of this one
+     */
+    public URLTemplate cached(final int maxEntries) {
+        if(maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be > 0");
+        }
+        return new URLTemplate(this, maxEntries);
+    }
+
+    /**
+     * @param pathParams the values of the placeholders
+     * @return the expanded URI
+     */
+    public URI expand(final Map<String, String> pathParams) {
+        return this.expand(pathParams, Collections.<String, List<String>>emptyMap());
+    }
+
+    /**
+     * @param pathParams  the values of the placeholders
+     * @param queryParams query parameters to append
+     * @return the expanded URI
+     */
+    public URI expand(final Map<String, String> pathParams, final Map<String, List<String>> queryParams) {
+        final String[] values = new String[this.names.length];
+        for(int i = 0; i < values.length; i++) {
+            values[i] = pathParams.get(this.names[i]);
+            if(values[i] == null) {
+                throw new IllegalArgumentException("Missing value for placeholder {" + this.names[i] + "} of " + this.template);
+            }
+        }
+        if((this.cache == null) || !queryParams.isEmpty()) {
+            return this.expand(values, queryParams);
+        }
+        final List<String> key = Arrays.asList(values);
+        URI uri = this.cache.get(key);
+        if(uri == null) {
+            uri = this.expand(values, queryParams);
+            this.cache.put(key, uri);
+        }
+        return uri;
+    }
+
+    private URI expand(final String[] values, final Map<String, List<String>> queryParams) {
+        final StringBuilder builder = new StringBuilder(this.literalLength + (values.length * 16));
+        for(int i = 0; i < values.length; i++) {
+            builder.append(this.literals[i]);
+            URLTemplate.encode(builder, values[i], this.query[i] ? URLTemplate.QUERY_SAFE : URLTemplate.PATH_SAFE);
+        }
+        builder.append(this.literals[values.length]);
+        boolean first = !this.hasQuery;
+        for(final Entry<String, List<String>> entry : queryParams.entrySet()) {
+            for(final String value : entry.getValue()) {
+                builder.append(first ? '?' : '&');
+                first = false;
+                URLTemplate.encode(builder, entry.getKey(), URLTemplate.QUERY_SAFE);
+                builder.append('=');
+                URLTemplate.encode(builder, value, URLTemplate.QUERY_SAFE);
+            }
+        }
+        try {
+            return URI.create(builder.toString());
+        } catch(final IllegalArgumentException e) {
+            throw new RuntimeException("Invalid URI", e);
+        }
+    }
+
+    private static void encode(final StringBuilder builder, final String value, final boolean[] safe) {
+        final int length = value.length();
+        for(int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if((c < 128) && safe[c]) {
+                builder.append(c);
+            } else {
+                // slow path for the rest of the value
+                for(final byte b : value.substring(i).getBytes(StandardCharsets.UTF_8)) {
+                    final int unsigned = b & 0xFF;
+                    if((unsigned < 128) && safe[unsigned]) {
+                        builder.append((char) unsigned);
+                    } else {
+                        builder.append('%').append(URLTemplate.HEX[unsigned >> 4]).append(URLTemplate.HEX[unsigned & 0xF]);
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    private static boolean[] safe(final String additional) {
+        final boolean[] safe = new boolean[128];
+        for(char c = 'a'; c <= 'z'; c++) {
+            safe[c] = true;
+        }
+        for(char c = 'A'; c <= 'Z'; c++) {
+            safe[c] = true;
+        }
+        for(char c = '0'; c <= '9'; c++) {
+            safe[c] = true;
+        }
+        for(final char c : additional.toCharArray()) {
+            safe[c] = true;
+        }
+        return safe;
+    }
+
+    @Override
+    public String toString() {
+        return this.template;
+    }
+
+}
@@ -20,6 +20,12 @@ package de.taimos.httputils;
  * #L%
  */
 
+import org.apache.http.pool.PoolStats;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.List;
+
 /**
  * @author thoeger
  */
@@ -37,4 +43,101 @@ public final class WS {
         return new HTTPRequest(url);
     }
 
+    /**
+     * @param template a template parsed using {@link #template(String)}
+     * @return the created {@link HTTPRequest}
+     */
+    public static HTTPRequest url(final URLTemplate template) {
+        return new HTTPRequest(template);
+    }
+
+    /**
+     * Parses a URL with <code>{name}</code> placeholders once for repeated use with {@link #url(URLTemplate)}.
+     *
+     * @param template the URL template
+     * @return the compiled {@link URLTemplate}
+     */
+    public static URLTemplate template(final String template) {
+        return new URLTemplate(template);
+    }
+
+    /**
+     * @param baseUrls the base URLs of the replicas of a service
+     * @return a new {@link Cluster} balancing requests over the replicas; keep it to share its statistics between requests
+     */
+    public static Cluster cluster(final List<String> baseUrls) {
+        return new Cluster(baseUrls);
+    }
+
+    /**
+     * @param name the name of the bulkhead
+     * @return the {@link Bulkhead} registered under this name; it is created with default settings on first use
+     */
+    public static Bulkhead bulkhead(final String name) {
+        return Bulkhead.named(name);
+    }
+
+    /**
+     * @param requests the requests to execute
+     * @return the {@link Batch} to configure and execute
+     */
+    public static Batch batch(final Collection<HTTPRequest> requests) {
+        return new Batch(requests);
+    }
+
+    /**
+     * @param urls URLs of the hosts to open connections to (scheme, host and port are used)
+     * @return a {@link Warmup} filling the pool with connections to these hosts
+     */
+    public static Warmup warmup(final Collection<String> urls) {
+        return new Warmup(urls);
+    }
+
+    /**
+     * @param name the name of the circuit breaker
+     * @return the {@link CircuitBreaker} registered under this name; it is created with default settings on first use
+     */
+    public static CircuitBreaker circuitBreaker(final String name) {
+        return CircuitBreaker.named(name);
+    }
+
+    /**
+     * Replaces the shared HTTP client with a new one using the given pool configuration.
+     *
+     * @param config the {@link HTTPClientConfig} to use
+     */
+    public static void configure(final HTTPClientConfig config) {
+        HTTPClientManager.configure(config);
+    }
+
+    /**
+     * @return the leased, available and pending connection counts of the whole pool
+     */
+    public static PoolStats poolStats() {
+        return HTTPClientManager.totalStats();
+    }
+
+    /**
+     * @return the reuse and eviction counts of the pool used by the blocking client
+     */
+    public static ConnectionStats connectionStats() {
+        return HTTPClientManager.connectionStats();
+    }
+
+    /**
+     * @return the leased, available and pending connection counts of the pool used by the non-blocking <code>*Async()</code> methods;
+     * all zero until the first request starts the non-blocking client
+     */
+    public static PoolStats asyncPoolStats() {
+        return HTTPClientManager.asyncTotalStats();
+    }
+
+    /**
+     * @param url any URL of the route (scheme, host and port are used)
+     * @return the leased, available and pending connection counts of the route
+     */
+    public static PoolStats poolStats(final String url) {
+        return HTTPClientManager.routeStats(URI.create(url));
+    }
+
 }
@@ -0,0 +1,229 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Opens connections to a list of hosts ahead of traffic and puts them into the pool, so the first requests do not pay for the TCP
+ * and TLS handshakes. Created by {@link WS#warmup(Collection)}.
+ *
+ * <pre>
+ * Warmup.Result result = WS.warmup(Arrays.asList("https://users:8443", "https://orders:8443")).connections(8).timeout(5000).execute();
+ * </pre>
+ *
+ * All connections are opened in parallel. Connections already in the pool count as established. The blocking pool is warmed, which
+ * serves the synchronous methods and the <code>*Async()</code> methods on virtual threads; the non-blocking client and HTTP/2 are not
+ * supported.
+ *
+ * @author thoeger
+ */
+public final class Warmup {
+
+    private final List<String> urls;
+
+    private int connections = 4;
+
+    private int timeout = 10000;
+
+    Warmup(final Collection<String> urls) {
+        if((urls == null) || urls.isEmpty()) {
+            throw new IllegalArgumentException("urls must not be empty");
+        }
+        this.urls = new ArrayList<>(urls);
+    }
+
+    /**
+     * @param count connections to open per host; limited by {@link HTTPClientConfig#maxPerRoute(int)} (default: 4)
+     * @return this
+     */
+    public Warmup connections(final int count) {
+        if(count <= 0) {
+            throw new IllegalArgumentException("connections must be > 0");
+        }
+        this.connections = count;
+        return this;
+    }
+
+    /**
+     * @param timeout deadline in ms for the whole warmup; connections still opening then are pooled when they complete but are not
+     *                counted (default: 10000)
+     * @return this
+     */
+    public Warmup timeout(final int timeout) {
+        if(timeout <= 0) {
+            throw new IllegalArgumentException("timeout must be > 0");
+        }
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * @return the connections established within the deadline
+     */
+    public Result execute() {
+        return PreparedRequest.await(this.executeAsync());
+    }
+
+    /**
+     * @return the future connections established within the deadline; it never fails because of connection errors
+     */
+    public CompletableFuture<Result> executeAsync() {
+        if(HTTPClientManager.isHttp2()) {
+            throw new IllegalStateException("warmup is not supported with HTTP/2");
+        }
+        final PoolingHttpClientConnectionManager manager = HTTPClientManager.connectionManager();
+        final long keepAlive = Math.max(0, HTTPClientManager.keepAlive());
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.timeout);
+        final Map<String, List<CompletableFuture<HttpClientConnection>>> opening = new LinkedHashMap<>();
+        final List<CompletableFuture<HttpClientConnection>> all = new ArrayList<>();
+        for(final String url : this.urls) {
+            final HttpRoute route = HTTPClientManager.route(URI.create(url));
+            final int count = Math.min(this.connections, manager.getMaxPerRoute(route));
+            final List<CompletableFuture<HttpClientConnection>> connections = opening.computeIfAbsent(url, key -> new ArrayList<>());
+            for(int i = 0; i < count; i++) {
+                final CompletableFuture<HttpClientConnection> connection = CompletableFuture.supplyAsync(() -> Warmup.open(manager, route, deadline, keepAlive), HTTPClientManager.executor());
+                connections.add(connection);
+                all.add(connection);
+            }
+        }
+
+        final CompletableFuture<Result> result = new CompletableFuture<>();
+        final AtomicBoolean finished = new AtomicBoolean();
+        final Runnable finish = () -> {
+            if(!finished.compareAndSet(false, true)) {
+                return;
+            }
+            final Map<String, Integer> established = new LinkedHashMap<>();
+            opening.forEach((url, connections) -> established.put(url, (int) connections.stream().filter(Warmup::isEstablished).count()));
+            // connections are kept leased until the end so every one of a host is a separate connection
+            all.forEach(connection -> connection.thenAccept(conn -> manager.releaseConnection(conn, null, keepAlive, TimeUnit.MILLISECONDS)));
+            result.complete(new Result(all.size(), established));
+        };
+        final ScheduledFuture<?> timer = HTTPClientManager.schedule(finish, this.timeout, TimeUnit.MILLISECONDS);
+        CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, e) -> {
+            timer.cancel(false);
+            finish.run();
+        });
+        return result;
+    }
+
+    private static HttpClientConnection open(final PoolingHttpClientConnectionManager manager, final HttpRoute route, final long deadline, final long keepAlive) {
+        final ConnectionRequest request = manager.requestConnection(route, null);
+        final HttpClientConnection connection;
+        try {
+            connection = request.get(Warmup.remaining(deadline), TimeUnit.MILLISECONDS);
+        } catch(final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        } catch(final ExecutionException | IOException e) {
+            throw new CompletionException(e);
+        }
+        try {
+            if(!connection.isOpen()) {
+                final HttpClientContext context = HttpClientContext.create();
+                manager.connect(connection, route, Warmup.remaining(deadline), context);
+                manager.routeComplete(connection, route, context);
+            }
+            return connection;
+        } catch(final IOException | RuntimeException e) {
+            manager.releaseConnection(connection, null, keepAlive, TimeUnit.MILLISECONDS);
+            throw new CompletionException(e);
+        }
+    }
+
+    private static int remaining(final long deadline) {
+        return (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    private static boolean isEstablished(final CompletableFuture<HttpClientConnection> connection) {
+        return connection.isDone() && !connection.isCompletedExceptionally();
+    }
+
+    /**
+     * The connections established by a warmup.
+     */
+    public static final class Result {
+
+        private final int requested;
+
+        private final Map<String, Integer> established;
+
+        private Result(final int requested, final Map<String, Integer> established) {
+            this.requested = requested;
+            this.established = Collections.unmodifiableMap(established);
+        }
+
+        /**
+         * @return the number of connections to open, after applying the per route limit
+         */
+        public int getRequested() {
+            return this.requested;
+        }
+
+        /**
+         * @return the number of connections in the pool for all hosts
+         */
+        public int getEstablished() {
+            return this.established.values().stream().mapToInt(Integer::intValue).sum();
+        }
+
+        /**
+         * @param url one of the warmed up URLs
+         * @return the number of connections in the pool for this URL
+         */
+        public int getEstablished(final String url) {
+            return this.established.getOrDefault(url, 0);
+        }
+
+        /**
+         * @return true if all requested connections were established
+         */
+        public boolean isComplete() {
+            return this.getEstablished() == this.requested;
+        }
+
+        @Override
+        public String toString() {
+            return "requested=" + this.requested + " established=" + this.established;
+        }
+    }
+
+}
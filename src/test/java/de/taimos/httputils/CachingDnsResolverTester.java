@@ -0,0 +1,89 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CachingDnsResolverTester {
+
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    private final AtomicBoolean down = new AtomicBoolean();
+
+    private final CachingDnsResolver resolver = new CachingDnsResolver(host -> {
+        this.lookups.incrementAndGet();
+        if(this.down.get()) {
+            throw new UnknownHostException(host);
+        }
+        return new InetAddress[]{InetAddress.getByAddress(host, new byte[]{127, 0, 0, (byte) this.lookups.get()})};
+    });
+
+    @Test
+    public void cached() throws Exception {
+        final InetAddress first = this.resolver.resolve("service.invalid")[0];
+        Assert.assertEquals(first, this.resolver.resolve("service.invalid")[0]);
+        Assert.assertEquals(1, this.lookups.get());
+        Assert.assertEquals(1, this.resolver.getMissCount());
+        Assert.assertEquals(1, this.resolver.getHitCount());
+        this.resolver.clear();
+        Assert.assertNotEquals(first, this.resolver.resolve("service.invalid")[0]);
+    }
+
+    @Test
+    public void refreshAhead() throws Exception {
+        this.resolver.ttl(1000).refreshAhead(1);
+        final InetAddress first = this.resolver.resolve("service.invalid")[0];
+        Thread.sleep(50);
+        // served from the cache while the refresh runs in the background
+        Assert.assertEquals(first, this.resolver.resolve("service.invalid")[0]);
+        for(int i = 0; (i < 100) && (this.lookups.get() < 2); i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(2, this.lookups.get());
+        Assert.assertEquals(1, this.resolver.getRefreshCount());
+        Thread.sleep(50);
+        Assert.assertNotEquals(first, this.resolver.resolve("service.invalid")[0]);
+    }
+
+    @Test
+    public void staleOnFailure() throws Exception {
+        this.resolver.ttl(10).maxStale(60000);
+        final InetAddress first = this.resolver.resolve("service.invalid")[0];
+        Thread.sleep(20);
+        this.down.set(true);
+        Assert.assertEquals(first, this.resolver.resolve("service.invalid")[0]);
+        Assert.assertEquals(1, this.resolver.getStaleHitCount());
+        Assert.assertEquals(1, this.resolver.getFailureCount());
+    }
+
+    @Test(expected = UnknownHostException.class)
+    public void unknownHost() throws Exception {
+        this.down.set(true);
+        this.resolver.resolve("service.invalid");
+    }
+
+}
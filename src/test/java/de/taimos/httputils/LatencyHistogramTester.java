@@ -0,0 +1,60 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTester {
+
+    @Test
+    public void percentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for(int i = 1; i <= 10000; i++) {
+            histogram.record(i * 1000L); // 1us .. 10ms
+        }
+        Assert.assertEquals(10000, histogram.getCount());
+        Assert.assertEquals(10000, histogram.getMax());
+        Assert.assertEquals(5000.5, histogram.getMean(), 0.001);
+        LatencyHistogramTester.assertWithin(5000, histogram.getValueAtPercentile(50));
+        LatencyHistogramTester.assertWithin(9900, histogram.getValueAtPercentile(99));
+        Assert.assertEquals(10000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void bucketsCoverValues() {
+        for(long value = 0; value < (1L << 32); value = (value * 3) + 1) {
+            final int index = LatencyHistogram.index(value);
+            Assert.assertTrue(LatencyHistogram.highestValue(index) >= value);
+            LatencyHistogramTester.assertWithin(value, LatencyHistogram.highestValue(index));
+        }
+    }
+
+    @Test
+    public void empty() {
+        Assert.assertEquals(0, new LatencyHistogram().getValueAtPercentile(99));
+    }
+
+    private static void assertWithin(final long expected, final long actual) {
+        Assert.assertTrue(actual + " not within 1.6% of " + expected, Math.abs(actual - expected) <= Math.max(1, expected / 64));
+    }
+
+}
@@ -22,14 +22,43 @@ package de.taimos.httputils;
 
 import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.junit.Assert;
+import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.binaryEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
 import static com.github.tomakehurst.wiremock.stubbing.Scenario.STARTED;
 
 /**
@@ -42,6 +71,12 @@ public class MockedTester {
     @Rule
     public WireMockRule wireMockRule = new WireMockRule(WireMockConfiguration.options().port(MockedTester.PORT).bindAddress("localhost"));
 
+    @Before
+    public void freshPool() {
+        // the server restarts for every test, so keep-alive connections pooled by an earlier test are dead
+        WS.configure(new HTTPClientConfig());
+    }
+
     @Test
     public void retrySuccess() {
         final String scenario = "retrySuccess";
@@ -83,4 +118,627 @@ public class MockedTester {
         }
     }
 
+    @Test
+    public void poolStats() {
+        stubFor(get(urlEqualTo("/poolStats")).willReturn(aResponse().withStatus(200).withBody("pooled")));
+        WS.configure(new HTTPClientConfig().maxTotal(10).maxPerRoute(5));
+        try {
+            final String base = "http://localhost:" + MockedTester.PORT;
+            try (final HTTPResponse response = WS.url(base + "/poolStats").get()) {
+                Assert.assertEquals(1, WS.poolStats(base).getLeased());
+                Assert.assertEquals("pooled", response.getResponseAsString());
+            }
+            Assert.assertEquals(0, WS.poolStats().getLeased());
+            Assert.assertEquals(10, WS.poolStats().getMax());
+            Assert.assertEquals(1, WS.poolStats(base).getAvailable());
+            Assert.assertEquals(5, WS.poolStats(base).getMax());
+            // reading the stats does not start the non-blocking client
+            Assert.assertEquals(0, WS.asyncPoolStats().getLeased());
+            Assert.assertEquals(10, WS.asyncPoolStats().getMax());
+        } finally {
+            WS.configure(new HTTPClientConfig());
+        }
+    }
+
+    @Test
+    public void retrySuccessAsync() throws Exception {
+        final String scenario = "retrySuccessAsync";
+        stubFor(get(urlEqualTo("/" + scenario)).inScenario(scenario)
+                .whenScenarioStateIs(STARTED)
+                .willReturn(aResponse().withStatus(500))
+                .willSetStateTo("retry0")
+        );
+        stubFor(get(urlEqualTo("/" + scenario)).inScenario(scenario)
+                .whenScenarioStateIs("retry0")
+                .willReturn(aResponse().withStatus(201).withBody("async"))
+                .willSetStateTo("done")
+        );
+        final HTTPRequest request = WS.url("http://localhost:" + MockedTester.PORT + "/" + scenario).retry(1, Retryable.standard(), WaitStrategy.constant(100));
+        try (final HTTPResponse response = request.getAsync().get(5, TimeUnit.SECONDS)) {
+            Assert.assertEquals(201, response.getStatus());
+            Assert.assertEquals("async", response.getResponseAsString());
+        }
+    }
+
+    @Test
+    public void retryFailureAsyncCallback() throws Exception {
+        stubFor(get(urlEqualTo("/retryFailureAsyncCallback")).willReturn(aResponse().withStatus(500)));
+        final CompletableFuture<Exception> failure = new CompletableFuture<>();
+        WS.url("http://localhost:" + MockedTester.PORT + "/retryFailureAsyncCallback").retry(1, Retryable.standard(), WaitStrategy.constant(100)).getAsync(new HTTPResponseCallback() {
+
+            @Override
+            public void response(final HTTPResponse response) {
+                failure.completeExceptionally(new AssertionError("unexpected response " + response.getStatus()));
+            }
+
+            @Override
+            public void fail(final Exception e) {
+                failure.complete(e);
+            }
+        });
+        final Exception e = failure.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals("retry exhausted", e.getMessage());
+        Assert.assertEquals("status code 500", e.getCause().getMessage());
+    }
+
+    @Test
+    public void virtualThreadsAsync() throws Exception {
+        // falls back to the default mode on JVMs without virtual threads
+        stubFor(get(urlEqualTo("/virtualThreadsAsync")).willReturn(aResponse().withStatus(200).withBody("virtual")));
+        WS.configure(new HTTPClientConfig().virtualThreads(true));
+        try (final HTTPResponse response = WS.url("http://localhost:" + MockedTester.PORT + "/virtualThreadsAsync").getAsync().get(5, TimeUnit.SECONDS)) {
+            Assert.assertEquals("virtual", response.getResponseAsString());
+        } finally {
+            WS.configure(new HTTPClientConfig());
+        }
+    }
+
+    @Test
+    public void preparedRequest() {
+        stubFor(post(urlEqualTo("/prepared")).withHeader("X-Test", equalTo("1")).withRequestBody(equalTo("body"))
+                .willReturn(aResponse().withStatus(200).withBody("prepared")));
+        final HTTPRequest request = WS.url("http://localhost:" + MockedTester.PORT + "/prepared").header("X-Test", "1").body("body");
+        final PreparedRequest prepared = request.prepare();
+        request.header("X-Test", "2").body("changed"); // does not affect the prepared request
+        for(int i = 0; i < 2; i++) {
+            try (final HTTPResponse response = prepared.post()) {
+                Assert.assertEquals("prepared", response.getResponseAsString());
+            }
+        }
+    }
+
+    @Test
+    public void streamToFile() throws Exception {
+        final byte[] body = new byte[1024 * 1024];
+        new Random(42).nextBytes(body);
+        stubFor(get(urlEqualTo("/stream")).willReturn(aResponse().withStatus(200).withBody(body)));
+        final Path target = Files.createTempFile("httputils", ".bin");
+        try (final HTTPResponse response = WS.url("http://localhost:" + MockedTester.PORT + "/stream").get()) {
+            Assert.assertEquals(body.length, response.transferTo(target));
+            Assert.assertArrayEquals(body, Files.readAllBytes(target));
+        } finally {
+            Files.delete(target);
+        }
+    }
+
+    @Test
+    public void uploadFileAndStream() throws Exception {
+        final byte[] body = new byte[256 * 1024];
+        new Random(42).nextBytes(body);
+        stubFor(post(urlEqualTo("/upload")).withRequestBody(binaryEqualTo(body)).willReturn(aResponse().withStatus(201)));
+        final Path source = Files.createTempFile("httputils", ".bin");
+        try {
+            Files.write(source, body);
+            final String url = "http://localhost:" + MockedTester.PORT + "/upload";
+            try (final HTTPResponse response = WS.url(url).body(source).post()) {
+                Assert.assertEquals(201, response.getStatus());
+            }
+            try (final HTTPResponse response = WS.url(url).body(ByteBuffer.wrap(body)).post()) {
+                Assert.assertEquals(201, response.getStatus());
+            }
+            try (final HTTPResponse response = WS.url(url).body(new ByteArrayInputStream(body), -1).post()) {
+                Assert.assertEquals(201, response.getStatus());
+            }
+            try (final HTTPResponse response = WS.url(url).body(source).postAsync().get(5, TimeUnit.SECONDS)) {
+                Assert.assertEquals(201, response.getStatus());
+            }
+        } finally {
+            Files.delete(source);
+        }
+    }
+
+    @Test
+    public void streamNotRetried() throws Exception {
+        stubFor(post(urlEqualTo("/streamed")).withRequestBody(equalTo("payload")).willReturn(aResponse().withStatus(503)));
+        final String url = "http://localhost:" + MockedTester.PORT + "/streamed";
+        // the consumed stream cannot be sent again, so the first response is returned as without retries
+        try (final HTTPResponse response = WS.url(url).body(new ByteArrayInputStream("payload".getBytes("UTF-8")), -1)
+                .retry(3, Retryable.standard(), WaitStrategy.constant(10)).post()) {
+            Assert.assertEquals(503, response.getStatus());
+        }
+        try (final HTTPResponse response = WS.url(url).body(new ByteArrayInputStream("payload".getBytes("UTF-8")), -1)
+                .retry(3, Retryable.standard(), WaitStrategy.constant(10)).postAsync().get(5, TimeUnit.SECONDS)) {
+            Assert.assertEquals(503, response.getStatus());
+        }
+        verify(2, postRequestedFor(urlEqualTo("/streamed")));
+    }
+
+    @Test
+    public void cacheHitAndRevalidation() {
+        stubFor(get(urlEqualTo("/fresh")).willReturn(aResponse().withStatus(200).withHeader("Cache-Control", "max-age=60").withBody("fresh")));
+        stubFor(get(urlEqualTo("/revalidate")).atPriority(2)
+                .willReturn(aResponse().withStatus(200).withHeader("Cache-Control", "no-cache").withHeader("ETag", "\"v1\"").withBody("revalidated")));
+        stubFor(get(urlEqualTo("/revalidate")).atPriority(1).withHeader(WSConstants.HEADER_IF_NONE_MATCH, equalTo("\"v1\""))
+                .willReturn(aResponse().withStatus(304)));
+        final HTTPCache cache = new HTTPCache();
+        final String base = "http://localhost:" + MockedTester.PORT;
+        for(int i = 0; i < 2; i++) {
+            try (final HTTPResponse response = WS.url(base + "/fresh").cache(cache).get()) {
+                Assert.assertEquals("fresh", response.getResponseAsString());
+            }
+            try (final HTTPResponse response = WS.url(base + "/revalidate").cache(cache).get()) {
+                Assert.assertEquals(200, response.getStatus());
+                Assert.assertEquals("revalidated", response.getResponseAsString());
+            }
+        }
+        Assert.assertEquals(2, cache.getMissCount());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getRevalidationCount());
+        verify(1, getRequestedFor(urlEqualTo("/fresh")));
+    }
+
+    @Test
+    public void cachePrivate() {
+        stubFor(get(urlEqualTo("/private")).withHeader(WSConstants.HEADER_AUTHORIZATION, equalTo("alice"))
+                .willReturn(aResponse().withStatus(200).withHeader("Cache-Control", "max-age=60").withBody("alice")));
+        stubFor(get(urlEqualTo("/private")).withHeader(WSConstants.HEADER_AUTHORIZATION, equalTo("bob"))
+                .willReturn(aResponse().withStatus(200).withHeader("Cache-Control", "max-age=60").withBody("bob")));
+        stubFor(get(urlEqualTo("/public")).willReturn(aResponse().withStatus(200).withHeader("Cache-Control", "public, max-age=60").withBody("shared")));
+        stubFor(get(urlEqualTo("/secret")).willReturn(aResponse().withStatus(200).withHeader("Cache-Control", "private, max-age=60").withBody("secret")));
+        stubFor(get(urlEqualTo("/any")).willReturn(aResponse().withStatus(200).withHeader("Cache-Control", "max-age=60").withHeader("Vary", "*").withBody("any")));
+        final HTTPCache cache = new HTTPCache();
+        final String base = "http://localhost:" + MockedTester.PORT;
+        for(int i = 0; i < 2; i++) {
+            try (final HTTPResponse response = WS.url(base + "/secret").cache(cache).get()) {
+                Assert.assertEquals("secret", response.getResponseAsString());
+            }
+            try (final HTTPResponse response = WS.url(base + "/any").cache(cache).get()) {
+                Assert.assertEquals("any", response.getResponseAsString());
+            }
+        }
+        for(final String user : new String[]{"alice", "bob", "alice"}) {
+            try (final HTTPResponse response = WS.url(base + "/private").auth(user).cache(cache).get()) {
+                Assert.assertEquals(user, response.getResponseAsString());
+            }
+            try (final HTTPResponse response = WS.url(base + "/public").auth(user).cache(cache).get()) {
+                Assert.assertEquals("shared", response.getResponseAsString());
+            }
+        }
+        Assert.assertEquals(1, cache.size());
+        verify(3, getRequestedFor(urlEqualTo("/private")));
+        verify(1, getRequestedFor(urlEqualTo("/public")));
+        verify(2, getRequestedFor(urlEqualTo("/secret")));
+        verify(2, getRequestedFor(urlEqualTo("/any")));
+    }
+
+    @Test
+    public void compression() throws Exception {
+        final StringBuilder json = new StringBuilder();
+        for(int i = 0; i < 200; i++) {
+            json.append("{\"id\":").append(i).append(",\"name\":\"item\"}\n");
+        }
+        final ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (final GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+            out.write(json.toString().getBytes("UTF-8"));
+        }
+        stubFor(post(urlEqualTo("/compressed")).withRequestBody(equalTo(json.toString())).willReturn(aResponse().withStatus(204)));
+        stubFor(get(urlEqualTo("/compressed")).withHeader(WSConstants.HEADER_ACCEPT_ENCODING, equalTo("gzip,deflate"))
+                .willReturn(aResponse().withStatus(200).withHeader("Content-Encoding", "gzip").withBody(gzipped.toByteArray())));
+        final String url = "http://localhost:" + MockedTester.PORT + "/compressed";
+        try (final HTTPResponse response = WS.url(url).body(json.toString()).compress(HTTPRequest.Encoding.GZIP, 1024).post()) {
+            Assert.assertEquals(204, response.getStatus());
+        }
+        verify(postRequestedFor(urlEqualTo("/compressed")).withHeader("Content-Encoding", equalTo("gzip")));
+        try (final HTTPResponse response = WS.url(url).get()) {
+            Assert.assertEquals(json.toString(), response.getResponseAsString());
+        }
+    }
+
+    @Test
+    public void configureReleasesOldPool() throws Exception {
+        stubFor(get(urlEqualTo("/pool")).willReturn(aResponse().withStatus(200).withBody("pooled")));
+        final PoolingHttpClientConnectionManager old = HTTPClientManager.connectionManager();
+        try (final HTTPResponse response = WS.url("http://localhost:" + MockedTester.PORT + "/pool").get()) {
+            WS.configure(new HTTPClientConfig());
+            // the leased connection survives the replacement
+            Assert.assertEquals("pooled", response.getResponseAsString());
+        }
+        try {
+            old.requestConnection(new HttpRoute(new HttpHost("localhost", MockedTester.PORT)), null).get(1, TimeUnit.SECONDS);
+            Assert.fail("expected the old pool to be shut down");
+        } catch(final IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void metrics() {
+        stubFor(get(urlEqualTo("/metrics/1")).willReturn(aResponse().withStatus(200).withBody("one")));
+        stubFor(get(urlEqualTo("/metrics/2")).willReturn(aResponse().withStatus(404)));
+        final MetricsRecorder metrics = new MetricsRecorder();
+        WS.configure(new HTTPClientConfig().metrics(metrics));
+        try {
+            for(final String id : new String[] {"1", "2"}) {
+                // bytes are counted as transferred; without Accept-Encoding the body is not gzipped on the wire
+                try (final HTTPResponse response = WS.url("http://localhost:" + MockedTester.PORT + "/metrics/{id}").pathParam("id", id).decompress(false).get()) {
+                    response.getResponseAsString();
+                }
+            }
+        } finally {
+            WS.configure(new HTTPClientConfig());
+        }
+        final RouteMetrics route = metrics.route("localhost", "/metrics/{id}");
+        Assert.assertEquals(2, route.getLatency().getCount());
+        Assert.assertEquals(1, route.getStatusCount(200));
+        Assert.assertEquals(1, route.getStatusCount(404));
+        Assert.assertEquals(3, route.getBytesReceived());
+        Assert.assertEquals(0, route.getInFlight());
+        Assert.assertTrue(route.getLatency().getValueAtPercentile(99) > 0);
+    }
+
+    @Test
+    public void circuitBreaker() {
+        stubFor(get(urlEqualTo("/circuitBreaker")).willReturn(aResponse().withStatus(503)));
+        final CircuitBreaker breaker = new CircuitBreaker().minimumCalls(2).openDuration(60000);
+        final HTTPRequest request = WS.url("http://localhost:" + MockedTester.PORT + "/circuitBreaker").circuitBreaker(breaker);
+        for(int i = 0; i < 2; i++) {
+            try (final HTTPResponse response = request.get()) {
+                Assert.assertEquals(503, response.getStatus());
+            }
+        }
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState("localhost"));
+        try {
+            request.retry(3, Retryable.standard(), WaitStrategy.constant(10)).get();
+            Assert.fail("expected open circuit");
+        } catch(final CircuitOpenException e) {
+            Assert.assertEquals("localhost", e.getHost());
+        }
+        verify(2, getRequestedFor(urlEqualTo("/circuitBreaker")));
+    }
+
+    @Test
+    public void retryBudget() {
+        stubFor(get(urlEqualTo("/retryBudget")).willReturn(aResponse().withStatus(503)));
+        final RetryBudget budget = new RetryBudget().ratio(0.5).minRetriesPerSecond(0);
+        final HTTPRequest request = WS.url("http://localhost:" + MockedTester.PORT + "/retryBudget").retry(3, Retryable.standard(), WaitStrategy.constant(0)).retryBudget(budget);
+        for(int i = 0; i < 4; i++) {
+            try {
+                request.get();
+                Assert.fail("expected failure");
+            } catch(final RuntimeException e) {
+                Assert.assertEquals("retry budget exhausted", e.getMessage());
+            }
+        }
+        // 4 requests deposit 2 retries
+        verify(6, getRequestedFor(urlEqualTo("/retryBudget")));
+        Assert.assertEquals(4, budget.getExhaustedCount());
+    }
+
+    @Test
+    public void cancelStopsRetries() throws Exception {
+        stubFor(get(urlEqualTo("/cancelStopsRetries")).willReturn(aResponse().withStatus(503)));
+        final CompletableFuture<HTTPResponse> future = WS.url("http://localhost:" + MockedTester.PORT + "/cancelStopsRetries")
+                .retry(3, Retryable.standard(), WaitStrategy.constant(500)).getAsync();
+        Thread.sleep(200);
+        future.cancel(false);
+        Thread.sleep(1000);
+        verify(1, getRequestedFor(urlEqualTo("/cancelStopsRetries")));
+    }
+
+    @Test
+    public void hedging() {
+        stubFor(get(urlEqualTo("/hedging")).inScenario("hedging")
+                .whenScenarioStateIs(STARTED)
+                .willReturn(aResponse().withStatus(200).withBody("slow").withFixedDelay(2000))
+                .willSetStateTo("fast")
+        );
+        stubFor(get(urlEqualTo("/hedging")).inScenario("hedging")
+                .whenScenarioStateIs("fast")
+                .willReturn(aResponse().withStatus(200).withBody("fast"))
+        );
+        final Hedging hedging = new Hedging().delay(100).maxRate(1);
+        try (final HTTPResponse response = WS.url("http://localhost:" + MockedTester.PORT + "/hedging").hedge(hedging).get()) {
+            Assert.assertEquals("fast", response.getResponseAsString());
+        }
+        Assert.assertEquals(1, hedging.getHedgeCount());
+        Assert.assertEquals(1, hedging.getWinCount());
+    }
+
+    @Test
+    public void singleFlight() throws Exception {
+        stubFor(get(urlEqualTo("/singleFlight")).willReturn(aResponse().withStatus(200).withBody("shared").withFixedDelay(500)));
+        final SingleFlight singleFlight = new SingleFlight();
+        final List<CompletableFuture<HTTPResponse>> futures = new ArrayList<>();
+        for(int i = 0; i < 5; i++) {
+            futures.add(WS.url("http://localhost:" + MockedTester.PORT + "/singleFlight").coalesce(singleFlight).getAsync());
+        }
+        for(final CompletableFuture<HTTPResponse> future : futures) {
+            try (final HTTPResponse response = future.get(5, TimeUnit.SECONDS)) {
+                Assert.assertEquals("shared", response.getResponseAsString());
+            }
+        }
+        verify(1, getRequestedFor(urlEqualTo("/singleFlight")));
+        Assert.assertEquals(4, singleFlight.getCoalescedCount());
+    }
+
+    @Test
+    public void singleFlightInterruptedFollower() throws Exception {
+        stubFor(get(urlEqualTo("/singleFlight")).willReturn(aResponse().withStatus(200).withBody("shared").withFixedDelay(500)));
+        final SingleFlight singleFlight = new SingleFlight();
+        final HTTPRequest request = WS.url("http://localhost:" + MockedTester.PORT + "/singleFlight").coalesce(singleFlight);
+        final CompletableFuture<HTTPResponse> leader = request.getAsync();
+        final Thread follower = new Thread(() -> {
+            try {
+                request.get().close();
+            } catch(final RuntimeException e) {
+                // interrupted
+            }
+        });
+        follower.start();
+        Thread.sleep(100);
+        follower.interrupt();
+        follower.join(5000);
+        try (final HTTPResponse response = leader.get(5, TimeUnit.SECONDS)) {
+            Assert.assertEquals("shared", response.getResponseAsString());
+        }
+        Assert.assertEquals(1, singleFlight.getCoalescedCount());
+    }
+
+    @Test
+    public void singleFlightCredentials() throws Exception {
+        stubFor(get(urlEqualTo("/singleFlightCredentials")).withHeader(WSConstants.HEADER_AUTHORIZATION, equalTo("alice"))
+                .willReturn(aResponse().withStatus(200).withBody("alice").withFixedDelay(500)));
+        stubFor(get(urlEqualTo("/singleFlightCredentials")).withHeader(WSConstants.HEADER_AUTHORIZATION, equalTo("bob"))
+                .willReturn(aResponse().withStatus(200).withBody("bob").withFixedDelay(500)));
+        final SingleFlight singleFlight = new SingleFlight();
+        final String url = "http://localhost:" + MockedTester.PORT + "/singleFlightCredentials";
+        final CompletableFuture<HTTPResponse> alice = WS.url(url).auth("alice").coalesce(singleFlight).getAsync();
+        final CompletableFuture<HTTPResponse> bob = WS.url(url).auth("bob").coalesce(singleFlight).getAsync();
+        try (final HTTPResponse response = alice.get(5, TimeUnit.SECONDS)) {
+            Assert.assertEquals("alice", response.getResponseAsString());
+        }
+        try (final HTTPResponse response = bob.get(5, TimeUnit.SECONDS)) {
+            Assert.assertEquals("bob", response.getResponseAsString());
+        }
+        Assert.assertEquals(2, singleFlight.getCallCount());
+    }
+
+    @Test
+    public void rateLimit() {
+        stubFor(get(urlEqualTo("/rateLimit")).willReturn(aResponse().withStatus(200)));
+        final RateLimiter limiter = new RateLimiter(10).burst(2).maxWait(1000);
+        final HTTPRequest request = WS.url("http://localhost:" + MockedTester.PORT + "/rateLimit").rateLimit(limiter);
+        final long start = System.nanoTime();
+        for(int i = 0; i < 5; i++) {
+            request.get().close();
+        }
+        // the burst is sent at once, the other three are spaced 100ms apart
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 250);
+        Assert.assertEquals(3, limiter.getDelayedCount());
+        try {
+            WS.url("http://localhost:" + MockedTester.PORT + "/rateLimit").rateLimit(new RateLimiter(1).maxWait(0)).get().close();
+            WS.url("http://localhost:" + MockedTester.PORT + "/rateLimit").rateLimit(limiter.maxWait(0)).get().close();
+            Assert.fail("expected rate limit");
+        } catch(final RateLimitException e) {
+            Assert.assertEquals("localhost", e.getKey());
+        }
+    }
+
+    @Test
+    public void batch() {
+        final List<HTTPRequest> requests = new ArrayList<>();
+        for(int i = 0; i < 10; i++) {
+            stubFor(get(urlEqualTo("/batch/" + i)).willReturn(aResponse().withStatus(200).withBody("ok").withFixedDelay(50)));
+            requests.add(WS.url("http://localhost:" + MockedTester.PORT + "/batch/" + i));
+        }
+        // nothing listens on port 1
+        requests.add(3, WS.url("http://localhost:1/batch"));
+        final AtomicInteger completed = new AtomicInteger();
+        final List<Batch.Result> results = WS.batch(requests).concurrency(4).onComplete(r -> completed.incrementAndGet()).execute();
+        Assert.assertEquals(11, results.size());
+        Assert.assertEquals(11, completed.get());
+        for(int i = 0; i < results.size(); i++) {
+            final Batch.Result result = results.get(i);
+            Assert.assertEquals(i, result.getIndex());
+            Assert.assertEquals(i != 3, result.isSuccess());
+            if(result.isSuccess()) {
+                Assert.assertEquals("ok", result.getResponse().getResponseAsString());
+                result.getResponse().close();
+            }
+        }
+        try {
+            WS.batch(requests).concurrency(1).failFast(true).execute();
+            Assert.fail("expected failure");
+        } catch(final RuntimeException e) {
+            // expected
+        }
+        // the requests after the failure were never sent
+        verify(2, getRequestedFor(urlEqualTo("/batch/2")));
+        verify(1, getRequestedFor(urlEqualTo("/batch/3")));
+    }
+
+    @Test
+    public void batchThrowingListener() {
+        stubFor(get(urlEqualTo("/batch")).willReturn(aResponse().withStatus(200).withBody("ok")));
+        final List<HTTPRequest> requests = new ArrayList<>();
+        for(int i = 0; i < 5; i++) {
+            requests.add(WS.url("http://localhost:" + MockedTester.PORT + "/batch"));
+        }
+        final AtomicInteger completed = new AtomicInteger();
+        try {
+            WS.batch(requests).concurrency(2).onComplete(r -> {
+                completed.incrementAndGet();
+                throw new IllegalStateException("listener");
+            }).execute();
+            Assert.fail("expected failure");
+        } catch(final IllegalStateException e) {
+            Assert.assertEquals("listener", e.getMessage());
+        }
+        // the slots were released and every request still ran
+        Assert.assertEquals(5, completed.get());
+        verify(5, getRequestedFor(urlEqualTo("/batch")));
+    }
+
+    @Test
+    public void bulkhead() throws Exception {
+        stubFor(get(urlEqualTo("/bulkhead")).willReturn(aResponse().withStatus(200).withFixedDelay(500)));
+        final MetricsRecorder metrics = new MetricsRecorder();
+        WS.configure(new HTTPClientConfig().metrics(metrics));
+        final Bulkhead bulkhead = new Bulkhead().maxConcurrent(1);
+        final String url = "http://localhost:" + MockedTester.PORT + "/bulkhead";
+        try {
+            final CompletableFuture<HTTPResponse> slow = WS.url(url).bulkhead(bulkhead).getAsync();
+            try {
+                WS.url(url).bulkhead(bulkhead).get().close();
+                Assert.fail("expected bulkhead full");
+            } catch(final BulkheadFullException e) {
+                Assert.assertEquals("localhost", e.getKey());
+            }
+            // other partitions are not affected
+            WS.url(url).bulkhead(bulkhead, "other").get().close();
+            slow.get().close();
+        } finally {
+            WS.configure(new HTTPClientConfig());
+        }
+        Assert.assertEquals(0, bulkhead.getInFlight("localhost"));
+        Assert.assertEquals(1, bulkhead.getRejectedCount());
+        Assert.assertEquals(1, metrics.route("localhost", "/bulkhead").getBulkheadFullCount());
+    }
+
+    @Test
+    public void cluster() {
+        stubFor(get(urlEqualTo("/a/cluster")).willReturn(aResponse().withStatus(503)));
+        stubFor(get(urlEqualTo("/b/cluster")).willReturn(aResponse().withStatus(200)));
+        final Cluster cluster = WS.cluster(Arrays.asList("http://localhost:" + MockedTester.PORT + "/a", "http://localhost:" + MockedTester.PORT + "/b/")).minimumCalls(3);
+        for(int i = 0; i < 10; i++) {
+            try (final HTTPResponse response = cluster.url("/cluster").retry(1, Retryable.standard(), WaitStrategy.constant(0)).get()) {
+                Assert.assertEquals(200, response.getStatus());
+            }
+        }
+        // every failure is retried on the other instance until the failing one is ejected after three calls
+        verify(3, getRequestedFor(urlEqualTo("/a/cluster")));
+        verify(10, getRequestedFor(urlEqualTo("/b/cluster")));
+        Assert.assertTrue(cluster.getInstances().get(0).isEjected());
+        Assert.assertFalse(cluster.getInstances().get(1).isEjected());
+    }
+
+    @Test
+    public void dnsResolver() throws Exception {
+        stubFor(get(urlEqualTo("/dnsResolver")).willReturn(aResponse().withStatus(200).withBody("resolved")));
+        final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        final CachingDnsResolver resolver = new CachingDnsResolver(host -> {
+            if("service.invalid".equals(host)) {
+                return new InetAddress[]{loopback};
+            }
+            throw new UnknownHostException(host);
+        });
+        WS.configure(new HTTPClientConfig().dnsResolver(resolver));
+        try {
+            for(int i = 0; i < 3; i++) {
+                try (final HTTPResponse response = WS.url("http://service.invalid:" + MockedTester.PORT + "/dnsResolver").get()) {
+                    Assert.assertEquals("resolved", response.getResponseAsString());
+                }
+            }
+            Assert.assertEquals(1, resolver.getMissCount());
+        } finally {
+            WS.configure(new HTTPClientConfig());
+        }
+    }
+
+    @Test
+    public void warmup() {
+        final String base = "http://localhost:" + MockedTester.PORT;
+        WS.configure(new HTTPClientConfig().maxPerRoute(3));
+        try {
+            final Warmup.Result result = WS.warmup(Arrays.asList(base, "http://localhost:1")).connections(5).timeout(5000).execute();
+            Assert.assertEquals(6, result.getRequested());
+            Assert.assertEquals(3, result.getEstablished(base));
+            Assert.assertEquals(0, result.getEstablished("http://localhost:1"));
+            Assert.assertFalse(result.isComplete());
+            Assert.assertEquals(3, WS.poolStats(base).getAvailable());
+        } finally {
+            WS.configure(new HTTPClientConfig());
+        }
+    }
+
+    @Test
+    public void idleEviction() throws Exception {
+        stubFor(get(urlEqualTo("/idleEviction")).willReturn(aResponse().withStatus(200).withBody("idle")));
+        final String base = "http://localhost:" + MockedTester.PORT;
+        WS.configure(new HTTPClientConfig().keepAlive(200).evictionInterval(50));
+        try {
+            for(int i = 0; i < 3; i++) {
+                try (final HTTPResponse response = WS.url(base + "/idleEviction").get()) {
+                    Assert.assertEquals("idle", response.getResponseAsString());
+                }
+            }
+            Assert.assertEquals(3, WS.connectionStats().getLeaseCount());
+            Assert.assertEquals(1, WS.connectionStats().getCreatedCount());
+            for(int i = 0; (i < 100) && (WS.connectionStats().getEvictedCount() == 0); i++) {
+                Thread.sleep(20);
+            }
+            Assert.assertEquals(1, WS.connectionStats().getEvictedCount());
+            Assert.assertEquals(0, WS.poolStats(base).getAvailable());
+        } finally {
+            WS.configure(new HTTPClientConfig());
+        }
+    }
+
+    @Test
+    public void lines() throws Exception {
+        stubFor(get(urlEqualTo("/lines")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/x-ndjson")
+                .withBody("{\"id\":1}\n{\"id\":2}\r\n{\"id\":3}\n")));
+        final String url = "http://localhost:" + MockedTester.PORT + "/lines";
+        try (final Stream<String> lines = WS.url(url).get().lines()) {
+            Assert.assertEquals(Arrays.asList("{\"id\":1}", "{\"id\":2}", "{\"id\":3}"), lines.collect(Collectors.toList()));
+        }
+
+        final List<String> received = new ArrayList<>();
+        final CompletableFuture<List<String>> done = new CompletableFuture<>();
+        WS.url(url).get().linesPublisher().subscribe(new LinePublisher.Subscriber() {
+
+            private LinePublisher.Subscription subscription;
+
+            @Override
+            public void onSubscribe(final LinePublisher.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(final String line) {
+                received.add(line);
+                this.subscription.request(1);
+            }
+
+            @Override
+            public void onError(final Throwable throwable) {
+                done.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                done.complete(received);
+            }
+        });
+        Assert.assertEquals(3, done.get(5, TimeUnit.SECONDS).size());
+
+        try (final Stream<String> lines = WS.url(url).get().lines(4)) {
+            lines.forEach(line -> Assert.fail("line longer than the maximum: " + line));
+            Assert.fail("expected the stream to fail");
+        } catch(final UncheckedIOException e) {
+            Assert.assertTrue(e.getCause().getMessage().contains("exceeds"));
+        }
+    }
+
 }
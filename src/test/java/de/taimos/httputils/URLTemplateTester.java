@@ -0,0 +1,77 @@
+package de.taimos.httputils;
+
+/*
+ * #%L
+ * Taimos HTTPUtils
+ * %%
+ * Copyright (C) 2012 - 2015 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class URLTemplateTester {
+
+    @Test
+    public void expandEncodesPerComponent() {
+        final Map<String, String> pathParams = new HashMap<>();
+        pathParams.put("id", "a/b c");
+        pathParams.put("q", "x&y=z+ä");
+        final Map<String, List<String>> queryParams = new LinkedHashMap<>();
+        queryParams.put("page", Arrays.asList("1", "2"));
+        final URI uri = WS.template("https://host/items/{id}?q={q}").expand(pathParams, queryParams);
+        Assert.assertEquals("https://host/items/a%2Fb%20c?q=x%26y%3Dz%2B%C3%A4&page=1&page=2", uri.toString());
+        Assert.assertEquals("/items/a/b c", uri.getPath());
+    }
+
+    @Test
+    public void expandWithoutPlaceholders() {
+        final Map<String, List<String>> queryParams = Collections.singletonMap("a", Collections.singletonList("b"));
+        Assert.assertEquals("http://host/items?a=b", WS.template("http://host/items").expand(Collections.<String, String>emptyMap(), queryParams).toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void expandMissingValue() {
+        WS.template("http://host/items/{id}").expand(Collections.<String, String>emptyMap());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unclosedPlaceholder() {
+        WS.template("http://host/items/{id");
+    }
+
+    @Test
+    public void cached() {
+        final URLTemplate template = WS.template("http://host/items/{id}").cached(10);
+        final Map<String, String> pathParams = Collections.singletonMap("id", "42");
+        Assert.assertSame(template.expand(pathParams), template.expand(pathParams));
+    }
+
+    @Test
+    public void request() {
+        final URLTemplate template = WS.template("http://host/items/{id}");
+        Assert.assertEquals("http://host/items/42?a=b", WS.url(template).pathParam("id", "42").queryParam("a", "b").buildURI().toString());
+    }
+
+}